@@ -0,0 +1,174 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link VictimsOutputStream} that delivers records to another sink from a
+ * separate thread. Records are handed over through a bounded queue; when the
+ * delegate falls behind, writers block until there is room, rather than
+ * records piling up in memory.
+ * 
+ * If the delegate fails, the error is thrown by a later write, flush or close
+ * and records written in the meantime are discarded.
+ * 
+ * @author abn
+ * 
+ */
+public class AsyncOutputStream extends VictimsOutputStream {
+    private static final Object END = new Object();
+    private static final AtomicInteger CONSUMERS = new AtomicInteger();
+
+    private final VictimsOutputStream delegate;
+    private final BlockingQueue<Object> queue;
+    private final Thread consumer;
+    private volatile IOException error = null;
+    private long written = 0;
+    private long delivered = 0;
+    private boolean closed = false;
+
+    /**
+     * 
+     * @param delegate
+     *            The sink records are delivered to.
+     * @param capacity
+     *            The maximum number of records waiting to be delivered.
+     */
+    public AsyncOutputStream(VictimsOutputStream delegate, int capacity) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+        this.consumer = new Thread("victims-output-"
+                + CONSUMERS.incrementAndGet()) {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    private void deliver() {
+        while (true) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (item == END) {
+                return;
+            }
+            try {
+                if (error == null) {
+                    delegate.write((VictimsRecord) item);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Could not deliver record.", e);
+            } finally {
+                synchronized (this) {
+                    delivered++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void check() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void write(VictimsRecord record) throws IOException {
+        check();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Stream is closed.");
+            }
+            written++;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                written--;
+            }
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to write a record.");
+        }
+    }
+
+    /**
+     * Wait for all records written so far to be delivered, then flush the
+     * delegate.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            while (delivered < written && consumer.isAlive()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for records to be delivered.");
+                }
+            }
+        }
+        check();
+        delegate.flush();
+    }
+
+    /**
+     * Deliver all records written, stop the delivering thread and close the
+     * delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+        } finally {
+            try {
+                queue.put(END);
+                consumer.join();
+            } catch (InterruptedException e) {
+                consumer.interrupt();
+            }
+            delegate.close();
+        }
+    }
+}
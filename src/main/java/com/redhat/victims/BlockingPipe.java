@@ -0,0 +1,178 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded hand-over of items from a producing thread to a consuming
+ * {@link Iterator}. The producer blocks while the pipe is full and ends it
+ * with either {@link #close()} or {@link #abort(IOException)}. The consumer
+ * may stop early by closing its iterator, after which the producer's puts
+ * fail instead of blocking.
+ * 
+ * @author abn
+ * 
+ * @param <T>
+ */
+class BlockingPipe<T> implements Iterable<T> {
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+    private volatile boolean cancelled = false;
+
+    public BlockingPipe(int capacity) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+    }
+
+    /**
+     * Add an item, waiting for room if necessary.
+     * 
+     * @param item
+     * @throws IOException
+     *             If the pipe is closed, the consumer stopped or the wait is
+     *             interrupted.
+     */
+    public void put(T item) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for items to be consumed.");
+        }
+        if (cancelled) {
+            // woken up by the consumer stopping
+            queue.clear();
+            throw new IOException("Iteration was closed.");
+        }
+    }
+
+    /**
+     * End the iteration once all items are consumed. This never blocks: if
+     * the pipe is full, the consumer finds the end once it has drained it.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.offer(END);
+    }
+
+    /**
+     * End the iteration with an error, thrown once all items are consumed.
+     * 
+     * @param e
+     */
+    public void abort(IOException e) {
+        if (!closed) {
+            error = e;
+        }
+        close();
+    }
+
+    /**
+     * Stop the iteration from the consuming side, discarding items not yet
+     * consumed and releasing a producer waiting for room.
+     */
+    public void cancel() {
+        cancelled = true;
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * @return <code>true</code> if the consumer stopped the iteration.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * The items put into this pipe. The iterator is not thread-safe and this
+     * may only be called once. Closing it cancels the pipe.
+     */
+    public VictimsIterator<T> iterator() {
+        return new VictimsIterator<T>() {
+            private Object next = null;
+            private boolean ended = false;
+
+            public boolean hasNext() {
+                if (cancelled) {
+                    return false;
+                }
+                if (next == null && !ended) {
+                    try {
+                        // once closed nothing more is put, so an empty queue
+                        // is the end even if there was no room for the marker
+                        next = closed ? queue.poll() : queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(
+                                "Interrupted while waiting for items.", e);
+                    }
+                    if (next == null || next == END) {
+                        next = null;
+                        ended = true;
+                    }
+                }
+                if (ended) {
+                    if (error != null) {
+                        throw new IllegalStateException("Scan failed.", error);
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T item = (T) next;
+                next = null;
+                return item;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                next = null;
+                cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+
+/**
+ * A {@link VictimsOutputStream} that hands each record to a {@link Callback}.
+ * 
+ * @author abn
+ * 
+ */
+public class CallbackOutputStream extends VictimsOutputStream {
+    private final Callback callback;
+
+    /**
+     * 
+     * @param callback
+     *            Called for each record written.
+     */
+    public CallbackOutputStream(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void write(VictimsRecord record) throws IOException {
+        callback.handle(record);
+    }
+
+    /**
+     * Receives records as they are produced.
+     * 
+     * @author abn
+     * 
+     */
+    public interface Callback {
+
+        /**
+         * 
+         * @param record
+         *            A record produced by a scan.
+         * @throws IOException
+         *             To stop the scan.
+         */
+        public void handle(VictimsRecord record) throws IOException;
+    }
+}
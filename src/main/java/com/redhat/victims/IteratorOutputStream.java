@@ -0,0 +1,89 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A {@link VictimsOutputStream} that makes the records written available
+ * through a blocking {@link Iterator}, typically consumed in a thread other
+ * than the one scanning. Records are handed over through a bounded queue, so
+ * a scan waits for the consumer when it falls behind.
+ * 
+ * The iteration ends when the stream is closed. If the producer fails, it
+ * should {@link #abort(IOException)} instead, causing the iterator to throw.
+ * If the consumer closes the iterator, further writes fail.
+ * 
+ * @author abn
+ * 
+ */
+public class IteratorOutputStream extends VictimsOutputStream implements
+        Iterable<VictimsRecord> {
+    private final BlockingPipe<VictimsRecord> pipe;
+
+    /**
+     * 
+     * @param capacity
+     *            The maximum number of records not yet consumed.
+     */
+    public IteratorOutputStream(int capacity) {
+        this.pipe = new BlockingPipe<VictimsRecord>(capacity);
+    }
+
+    @Override
+    public void write(VictimsRecord record) throws IOException {
+        pipe.put(record);
+    }
+
+    /**
+     * End the iteration once all records written are consumed.
+     */
+    @Override
+    public void close() throws IOException {
+        pipe.close();
+    }
+
+    /**
+     * End the iteration with an error. Records already written are still
+     * provided before the error is thrown.
+     * 
+     * @param e
+     */
+    public void abort(IOException e) {
+        pipe.abort(e);
+    }
+
+    /**
+     * The records written to this stream. The iterator is not thread-safe and
+     * this may only be called once.
+     * 
+     * @return An iterator whose methods block until records are available.
+     *         If the stream was aborted, an {@link IllegalStateException}
+     *         caused by the error is thrown. Closing it discards records not
+     *         yet consumed.
+     */
+    public VictimsIterator<VictimsRecord> iterator() {
+        return pipe.iterator();
+    }
+}
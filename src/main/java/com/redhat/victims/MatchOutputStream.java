@@ -0,0 +1,260 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.redhat.victims.database.VictimsBatchDBInterface;
+import com.redhat.victims.database.VictimsDBInterface;
+
+/**
+ * A {@link VictimsOutputStream} that matches the records written against a
+ * victims database in a separate thread, providing each record with its
+ * vulnerabilities through a blocking {@link Iterator}. Matching overlaps with
+ * scanning; records that queue up while the database is busy are looked up
+ * together as a batch, if the database is a {@link VictimsBatchDBInterface}.
+ * 
+ * The iteration ends when the stream is closed. If the producer fails, it
+ * should {@link #abort(IOException)} instead, causing the iterator to throw.
+ * If the consumer closes the iterator, matching stops and further writes
+ * fail.
+ * 
+ * @author abn
+ * 
+ */
+public class MatchOutputStream extends VictimsOutputStream implements
+        Iterable<VictimsMatch> {
+    private static final Object END = new Object();
+    private static final AtomicInteger MATCHERS = new AtomicInteger();
+
+    private final VictimsDBInterface db;
+    private final int batch;
+    private final BlockingQueue<Object> records;
+    private final BlockingPipe<VictimsMatch> matches;
+    private final Thread matcher;
+    private volatile IOException error = null;
+    private volatile IOException aborted = null;
+    private volatile boolean closed = false;
+
+    /**
+     * 
+     * @param db
+     *            The database to match records against. It is only used from
+     *            the matching thread.
+     * @param batch
+     *            The maximum number of records looked up at once.
+     * @param capacity
+     *            The maximum number of records, and of matches, waiting to be
+     *            processed.
+     */
+    public MatchOutputStream(VictimsDBInterface db, int batch, int capacity) {
+        this.db = db;
+        this.batch = Math.max(1, batch);
+        this.records = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+        this.matches = new BlockingPipe<VictimsMatch>(capacity);
+        this.matcher = new Thread("victims-match-"
+                + MATCHERS.incrementAndGet()) {
+            @Override
+            public void run() {
+                try {
+                    matchAll();
+                    if (aborted != null) {
+                        matches.abort(aborted);
+                    } else {
+                        matches.close();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(new IOException("Could not match records.", e));
+                }
+            }
+        };
+        this.matcher.setDaemon(true);
+        this.matcher.start();
+    }
+
+    private void fail(IOException e) {
+        error = e;
+        matches.abort(e);
+        // release a producer waiting for room
+        records.clear();
+    }
+
+    /**
+     * Stop matching on behalf of the consumer. A producer waiting for room is
+     * released and the matching thread ends after the lookup in progress, if
+     * any. It is not interrupted, as that may close the files of an embedded
+     * database.
+     */
+    private void cancel() {
+        if (error == null) {
+            error = new IOException("Iteration was closed.");
+        }
+        matches.cancel();
+        records.clear();
+        records.offer(END);
+    }
+
+    private void matchAll() throws IOException {
+        ArrayList<Object> pending = new ArrayList<Object>(batch);
+        while (true) {
+            try {
+                pending.add(records.take());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for records.");
+            }
+            records.drainTo(pending, batch - 1);
+            boolean end = pending.remove(END);
+            ArrayList<VictimsRecord> lookup = new ArrayList<VictimsRecord>(
+                    pending.size());
+            for (Object record : pending) {
+                lookup.add((VictimsRecord) record);
+            }
+            pending.clear();
+            match(lookup);
+            if (end) {
+                return;
+            }
+        }
+    }
+
+    private void match(ArrayList<VictimsRecord> lookup) throws IOException {
+        HashMap<String, HashSet<String>> cves;
+        try {
+            if (db instanceof VictimsBatchDBInterface) {
+                cves = ((VictimsBatchDBInterface) db)
+                        .getVulnerabilities(lookup);
+            } else {
+                cves = new HashMap<String, HashSet<String>>();
+                for (VictimsRecord record : lookup) {
+                    cves.put(record.hash, db.getVulnerabilities(record));
+                }
+            }
+        } catch (VictimsException e) {
+            throw new IOException(String.format(
+                    "Could not match %d records.", lookup.size()), e);
+        }
+        for (VictimsRecord record : lookup) {
+            matches.put(new VictimsMatch(record, cves.get(record.hash)));
+        }
+    }
+
+    private void check() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void write(VictimsRecord record) throws IOException {
+        check();
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        try {
+            records.put(record);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to write a record.");
+        }
+        check();
+    }
+
+    /**
+     * End the iteration once all records written are matched and consumed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (error != null) {
+            // nothing is matching anymore
+            throw error;
+        }
+        try {
+            records.put(END);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while waiting to close.");
+        }
+        check();
+    }
+
+    /**
+     * End the iteration with an error. Records already written are still
+     * matched before the error is thrown.
+     * 
+     * @param e
+     */
+    public void abort(IOException e) {
+        aborted = e;
+        try {
+            close();
+        } catch (IOException ce) {
+            // already failing
+        }
+    }
+
+    /**
+     * The records written to this stream with their vulnerabilities. The
+     * iterator is not thread-safe and this may only be called once.
+     * 
+     * @return An iterator whose methods block until matches are available.
+     *         If matching or the producer failed, an
+     *         {@link IllegalStateException} caused by the error is thrown.
+     *         Closing it stops matching.
+     */
+    public VictimsIterator<VictimsMatch> iterator() {
+        final VictimsIterator<VictimsMatch> iterator = matches.iterator();
+        return new VictimsIterator<VictimsMatch>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public VictimsMatch next() {
+                return iterator.next();
+            }
+
+            public void remove() {
+                iterator.remove();
+            }
+
+            public void close() {
+                iterator.close();
+                cancel();
+            }
+        };
+    }
+}
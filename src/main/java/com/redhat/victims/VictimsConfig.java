@@ -27,13 +27,17 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import com.redhat.victims.database.VictimsDB;
 import com.redhat.victims.fingerprint.Algorithms;
+import com.redhat.victims.fingerprint.DefaultEntryFilter;
+import com.redhat.victims.fingerprint.EntryFilter;
 
 /**
  * This class provides system property keys and default values for all available
@@ -44,8 +48,21 @@ import com.redhat.victims.fingerprint.Algorithms;
  */
 public class VictimsConfig {
     protected static String DEFAULT_ALGORITHM_STRING = "SHA512";
+    protected static int DEFAULT_MEMO_SIZE = 16384;
+    protected static int DEFAULT_ARCHIVE_DEPTH = 16;
+    protected static int DEFAULT_MATCH_BATCH = 64;
+    protected static int DEFAULT_DB_POOL_SIZE = 8;
+    protected static long DEFAULT_DB_POOL_IDLE = 300;
+    protected static int DEFAULT_DB_STATEMENTS = 32;
+    protected static double DEFAULT_DB_FILTER_FPP = 0.01;
+    protected static int DEFAULT_DB_SYNC_BATCH = 1000;
     public static final HashMap<String, String> DEFAULT_PROPS = new HashMap<String, String>();
 
+    // parsed values, reused for as long as the raw value is the same instance
+    private static volatile Parsed<List<Algorithms>> parsedAlgorithms = null;
+    private static volatile Parsed<Charset> parsedCharset = null;
+    private static volatile Parsed<Integer> parsedMemoSize = null;
+
     static {
         DEFAULT_PROPS.put(Key.URI, "http://www.victi.ms/");
         DEFAULT_PROPS.put(Key.ENTRY, "service/");
@@ -58,6 +75,19 @@ public class VictimsConfig {
         DEFAULT_PROPS.put(Key.DB_PASS, "victims");
     }
 
+    /**
+     * A configured value along with the raw string it was parsed from.
+     */
+    private static final class Parsed<T> {
+        final String raw;
+        final T value;
+
+        Parsed(String raw, T value) {
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+
     public static Algorithms getDefaultAlgorithm() {
         return Algorithms.valueOf(DEFAULT_ALGORITHM_STRING);
     }
@@ -82,13 +112,105 @@ public class VictimsConfig {
         return env;
     }
 
+    /**
+     * Get a configured boolean value.
+     * 
+     * @param key
+     * @param defaultValue
+     * @return The value, or the given default if not configured.
+     */
+    private static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getPropertyValue(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Get a configured integer value.
+     * 
+     * @param key
+     * @param min
+     *            The smallest valid value.
+     * @param defaultValue
+     * @return The value, or the given default if not configured or invalid.
+     */
+    private static int getInt(String key, int min, int defaultValue) {
+        return parseInt(getPropertyValue(key), min, defaultValue);
+    }
+
+    private static int parseInt(String value, int min, int defaultValue) {
+        long parsed = parseLong(value, min, defaultValue);
+        return parsed <= Integer.MAX_VALUE ? (int) parsed : defaultValue;
+    }
+
+    /**
+     * Get a configured long value.
+     * 
+     * @param key
+     * @param min
+     *            The smallest valid value.
+     * @param defaultValue
+     * @return The value, or the given default if not configured or invalid.
+     */
+    private static long getLong(String key, long min, long defaultValue) {
+        return parseLong(getPropertyValue(key), min, defaultValue);
+    }
+
+    private static long parseLong(String value, long min, long defaultValue) {
+        if (value != null) {
+            try {
+                long parsed = Long.parseLong(value.trim());
+                if (parsed >= min) {
+                    return parsed;
+                }
+            } catch (NumberFormatException e) {
+                // use default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get a configured floating point value.
+     * 
+     * @param key
+     * @param min
+     *            The smallest valid value.
+     * @param max
+     *            The largest valid value.
+     * @param defaultValue
+     * @return The value, or the given default if not configured or invalid.
+     */
+    private static double getDouble(String key, double min, double max,
+            double defaultValue) {
+        String value = getPropertyValue(key);
+        if (value != null) {
+            try {
+                double parsed = Double.parseDouble(value.trim());
+                if (parsed >= min && parsed <= max) {
+                    return parsed;
+                }
+            } catch (NumberFormatException e) {
+                // use default
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * 
      * @return Default encoding.
      */
     public static Charset charset() {
         String enc = getPropertyValue(Key.ENCODING);
-        return Charset.forName(enc);
+        Parsed<Charset> parsed = parsedCharset;
+        if (parsed == null || parsed.raw != enc) {
+            parsed = new Parsed<Charset>(enc, Charset.forName(enc));
+            parsedCharset = parsed;
+        }
+        return parsed.value;
     }
 
     /**
@@ -154,8 +276,25 @@ public class VictimsConfig {
      * @return
      */
     public static ArrayList<Algorithms> algorithms() {
+        return new ArrayList<Algorithms>(currentAlgorithms());
+    }
+
+    /**
+     * Same as {@link #algorithms()}, but the returned list is unmodifiable
+     * and the same instance is returned for as long as the configuration does
+     * not change. This allows callers to detect a change by identity.
+     * 
+     * @return
+     */
+    public static List<Algorithms> currentAlgorithms() {
+        String raw = getPropertyValue(Key.ALGORITHMS);
+        Parsed<List<Algorithms>> parsed = parsedAlgorithms;
+        if (parsed != null && parsed.raw == raw) {
+            return parsed.value;
+        }
+
         ArrayList<Algorithms> algorithms = new ArrayList<Algorithms>();
-        for (String alg : getPropertyValue(Key.ALGORITHMS).split(",")) {
+        for (String alg : raw.split(",")) {
             alg = alg.trim();
             try {
                 algorithms.add(Algorithms.valueOf(alg));
@@ -168,7 +307,10 @@ public class VictimsConfig {
             algorithms.add(getDefaultAlgorithm());
         }
 
-        return algorithms;
+        parsed = new Parsed<List<Algorithms>>(raw,
+                Collections.unmodifiableList(algorithms));
+        parsedAlgorithms = parsed;
+        return parsed.value;
     }
 
     /**
@@ -220,7 +362,225 @@ public class VictimsConfig {
      * @return
      */
     public static boolean forcedUpdate() {
-        return Boolean.getBoolean(Key.DB_PURGE);
+        return getBoolean(Key.DB_PURGE, false);
+    }
+
+    /**
+     * Get the maximum number of connections open to the database at once. If
+     * not configured or invalid, defaults to 8.
+     * 
+     * @return
+     */
+    public static int dbPoolSize() {
+        return getInt(Key.DB_POOL_SIZE, 1, DEFAULT_DB_POOL_SIZE);
+    }
+
+    /**
+     * Get how long, in milliseconds, a pooled database connection may be idle
+     * before it is closed. Configured in seconds; if not configured or
+     * invalid, defaults to 5 minutes.
+     * 
+     * @return
+     */
+    public static long dbPoolIdle() {
+        return getLong(Key.DB_POOL_IDLE, 0, DEFAULT_DB_POOL_IDLE) * 1000;
+    }
+
+    /**
+     * Get the maximum number of prepared statements cached per pooled
+     * database connection. If not configured or invalid, defaults to 32. If
+     * 0, statements are prepared every time.
+     * 
+     * @return
+     */
+    public static int dbStatementCache() {
+        return getInt(Key.DB_STATEMENTS, 0, DEFAULT_DB_STATEMENTS);
+    }
+
+    /**
+     * Get the false positive probability of the in-memory filters over the
+     * hashes in the database. If not configured or invalid, defaults to 0.01.
+     * If 0, lookups are not filtered.
+     * 
+     * @return
+     */
+    public static double dbFilterFpp() {
+        double fpp = getDouble(Key.DB_FILTER_FPP, 0, 1, DEFAULT_DB_FILTER_FPP);
+        // every lookup would be a false positive
+        return fpp < 1 ? fpp : DEFAULT_DB_FILTER_FPP;
+    }
+
+    /**
+     * Should embedded lookups be answered from an in-memory inverted index of
+     * the file hashes in the database, built on the first embedded lookup.
+     * Disabled unless configured otherwise.
+     * 
+     * @return
+     */
+    public static boolean dbPostings() {
+        return getBoolean(Key.DB_POSTINGS, false);
+    }
+
+    /**
+     * Get the number of records staged and written together while
+     * synchronizing the database. If not configured or invalid, defaults to
+     * 1000.
+     * 
+     * @return
+     */
+    public static int dbSyncBatch() {
+        return getInt(Key.DB_SYNC_BATCH, 1, DEFAULT_DB_SYNC_BATCH);
+    }
+
+    /**
+     * Should hash lookups be served from a memory-mapped index of the
+     * database in the victims home.
+     * 
+     * @return
+     */
+    public static boolean dbIndex() {
+        return getBoolean(Key.DB_INDEX, false);
+    }
+
+    /**
+     * Get the number of threads to use for fingerprinting. If not configured
+     * or invalid, the number of available processors is used.
+     * 
+     * @return
+     */
+    public static int threads() {
+        return getInt(Key.THREADS, 1, Runtime.getRuntime()
+                .availableProcessors());
+    }
+
+    /**
+     * Get the maximum number of class fingerprints to memoize. A value of 0
+     * disables the memo. If not configured or invalid, a default of 16384 is
+     * used.
+     * 
+     * @return
+     */
+    public static int memoSize() {
+        String raw = getPropertyValue(Key.MEMO_SIZE);
+        Parsed<Integer> parsed = parsedMemoSize;
+        if (parsed == null || parsed.raw != raw) {
+            parsed = new Parsed<Integer>(raw, parseInt(raw, 0,
+                    DEFAULT_MEMO_SIZE));
+            parsedMemoSize = parsed;
+        }
+        return parsed.value;
+    }
+
+    /**
+     * Should memoized class fingerprints be persisted in the victims home.
+     * 
+     * @return
+     */
+    public static boolean persistMemo() {
+        return getBoolean(Key.MEMO_PERSIST, false);
+    }
+
+    /**
+     * Get the maximum depth of embedded archives to process. If not configured
+     * or invalid, a default of 16 is used.
+     * 
+     * @return
+     */
+    public static int archiveDepth() {
+        return getInt(Key.ARCHIVE_DEPTH, 0, DEFAULT_ARCHIVE_DEPTH);
+    }
+
+    /**
+     * Get the maximum number of uncompressed bytes to process for an archive,
+     * including all archives embedded in it. If not configured or invalid,
+     * there is no limit.
+     * 
+     * @return
+     */
+    public static long archiveBudget() {
+        return getLong(Key.ARCHIVE_BUDGET, 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get a new instance of the configured {@link EntryFilter} deciding which
+     * archive entries are processed. If not configured, or if the configured
+     * class cannot be instantiated, a {@link DefaultEntryFilter} is used.
+     * 
+     * @return
+     */
+    public static EntryFilter entryFilter() {
+        String filter = getPropertyValue(Key.ARCHIVE_FILTER);
+        if (filter != null) {
+            try {
+                return (EntryFilter) Class.forName(filter.trim())
+                        .newInstance();
+            } catch (Exception e) {
+                // use default
+            }
+        }
+        return new DefaultEntryFilter();
+    }
+
+    /**
+     * Get the number of files to scan in parallel when scanning a directory.
+     * If not configured or invalid, files are scanned one at a time.
+     * 
+     * @return
+     */
+    public static int scanThreads() {
+        return getInt(Key.SCAN_THREADS, 1, 1);
+    }
+
+    /**
+     * Should records of a parallel directory scan be provided as soon as
+     * available, instead of in the order files are found.
+     * 
+     * @return
+     */
+    public static boolean scanUnordered() {
+        return getBoolean(Key.SCAN_UNORDERED, false);
+    }
+
+    /**
+     * Should files scanned be recorded in, and unchanged files be taken from,
+     * the scan index in the victims home.
+     * 
+     * @return
+     */
+    public static boolean scanIncremental() {
+        return getBoolean(Key.SCAN_INCREMENTAL, false);
+    }
+
+    /**
+     * Get the fraction of unchanged files whose content is re-verified when
+     * scanning incrementally. If not configured or invalid, no files are
+     * re-verified.
+     * 
+     * @return A value between 0 and 1.
+     */
+    public static double scanVerify() {
+        return getDouble(Key.SCAN_VERIFY, 0, 1, 0);
+    }
+
+    /**
+     * Get the maximum number of scanned records looked up in the database at
+     * once when matching a scan. If not configured or invalid, defaults to
+     * 64.
+     * 
+     * @return
+     */
+    public static int matchBatch() {
+        return getInt(Key.MATCH_BATCH, 1, DEFAULT_MATCH_BATCH);
+    }
+
+    /**
+     * Should records written to an output stream by the scanner be gzip
+     * compressed.
+     * 
+     * @return
+     */
+    public static boolean gzipOutput() {
+        return getBoolean(Key.OUTPUT_GZIP, false);
     }
 
     /**
@@ -229,7 +589,7 @@ public class VictimsConfig {
      * @return
      */
     public static boolean purgeCache() {
-        return Boolean.getBoolean(Key.PURGE_CACHE);
+        return getBoolean(Key.PURGE_CACHE, false);
     }
 
     /**
@@ -251,6 +611,25 @@ public class VictimsConfig {
         public static final String DB_USER = "victims.db.user";
         public static final String DB_PASS = "victims.db.pass";
         public static final String DB_PURGE = "victims.db.purge";
+        public static final String DB_POOL_SIZE = "victims.db.pool.size";
+        public static final String DB_POOL_IDLE = "victims.db.pool.idle";
+        public static final String DB_STATEMENTS = "victims.db.statements";
+        public static final String DB_FILTER_FPP = "victims.db.filter.fpp";
+        public static final String DB_INDEX = "victims.db.index";
+        public static final String DB_POSTINGS = "victims.db.postings";
+        public static final String DB_SYNC_BATCH = "victims.db.sync.batch";
+        public static final String THREADS = "victims.fingerprint.threads";
+        public static final String MEMO_SIZE = "victims.fingerprint.memo";
+        public static final String MEMO_PERSIST = "victims.fingerprint.memo.persist";
+        public static final String ARCHIVE_DEPTH = "victims.archive.depth";
+        public static final String ARCHIVE_BUDGET = "victims.archive.budget";
+        public static final String ARCHIVE_FILTER = "victims.archive.filter";
+        public static final String SCAN_THREADS = "victims.scan.threads";
+        public static final String SCAN_UNORDERED = "victims.scan.unordered";
+        public static final String SCAN_INCREMENTAL = "victims.scan.incremental";
+        public static final String SCAN_VERIFY = "victims.scan.verify";
+        public static final String OUTPUT_GZIP = "victims.output.gzip";
+        public static final String MATCH_BATCH = "victims.match.batch";
     }
 
 }
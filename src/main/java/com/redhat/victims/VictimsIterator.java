@@ -0,0 +1,44 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} over results produced in the background. If the
+ * iteration is not completed, it should be closed to stop the background
+ * work and release what it holds.
+ * 
+ * @author abn
+ * 
+ * @param <T>
+ */
+public interface VictimsIterator<T> extends Iterator<T>, Closeable {
+    /**
+     * Stop producing results. Results not yet consumed are discarded and
+     * {@link #hasNext()} returns <code>false</code> from now on. Closing a
+     * completed iteration has no effect.
+     */
+    void close();
+}
@@ -0,0 +1,72 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.HashSet;
+
+/**
+ * A scanned {@link VictimsRecord} together with the vulnerabilities it was
+ * matched to.
+ * 
+ * @author abn
+ * 
+ */
+public class VictimsMatch {
+    private final VictimsRecord record;
+    private final HashSet<String> cves;
+
+    /**
+     * 
+     * @param record
+     * @param cves
+     *            The CVEs matched, <code>null</code> if none.
+     */
+    public VictimsMatch(VictimsRecord record, HashSet<String> cves) {
+        this.record = record;
+        this.cves = cves == null ? new HashSet<String>() : cves;
+    }
+
+    /**
+     * 
+     * @return The scanned record.
+     */
+    public VictimsRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * 
+     * @return The CVEs the record is vulnerable to, empty if none.
+     */
+    public HashSet<String> getVulnerabilities() {
+        return cves;
+    }
+
+    /**
+     * 
+     * @return true if the record matched any vulnerability.
+     */
+    public boolean isVulnerable() {
+        return !cves.isEmpty();
+    }
+}
@@ -0,0 +1,65 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A sink for the {@link VictimsRecord}s produced when scanning. Implementations
+ * need not be thread-safe, the scanner writes records from one thread at a
+ * time.
+ * 
+ * @author abn
+ * 
+ */
+public abstract class VictimsOutputStream implements Closeable, Flushable {
+
+    /**
+     * Write a record to this sink.
+     * 
+     * @param record
+     * @throws IOException
+     */
+    public abstract void write(VictimsRecord record) throws IOException;
+
+    /**
+     * Make sure that all records written so far are delivered. The scanner
+     * flushes a sink once a scan completes.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Flush and release any resources held by this sink. No records can be
+     * written after.
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+    }
+}
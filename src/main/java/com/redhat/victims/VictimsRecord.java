@@ -21,6 +21,7 @@ package com.redhat.victims;
  * #L%
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,6 +33,8 @@ import org.apache.commons.io.FilenameUtils;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
 import com.redhat.victims.fingerprint.Algorithms;
 import com.redhat.victims.fingerprint.Artifact;
 import com.redhat.victims.fingerprint.Fingerprint;
@@ -47,6 +50,9 @@ import com.redhat.victims.fingerprint.Metadata;
 public class VictimsRecord {
     protected static final String UNKNOWN = Placeholder.UNKNOWN.toString();
     public static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    // Gson instances are thread-safe and expensive to create
+    private static final Gson GSON = new GsonBuilder().setDateFormat(
+            DATE_FORMAT).create();
     public static final String SCHEMA_VERSION = "2.0";
 
     // structure info
@@ -76,8 +82,7 @@ public class VictimsRecord {
      * @return
      */
     public static VictimsRecord fromJSON(String jsonStr) {
-        Gson gson = new GsonBuilder().setDateFormat(DATE_FORMAT).create();
-        return gson.fromJson(jsonStr, VictimsRecord.class);
+        return GSON.fromJson(jsonStr, VictimsRecord.class);
     }
 
     /**
@@ -86,8 +91,25 @@ public class VictimsRecord {
      */
     @Override
     public String toString() {
-        Gson gson = new GsonBuilder().setDateFormat(DATE_FORMAT).create();
-        return gson.toJson(this);
+        return GSON.toJson(this);
+    }
+
+    /**
+     * Write the JSON representation of this instance to the given writer. This
+     * is identical to {@link #toString()}, without building the string.
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void toJSON(JsonWriter writer) throws IOException {
+        try {
+            GSON.toJson(this, VictimsRecord.class, writer);
+        } catch (JsonIOException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
     }
 
     /**
@@ -105,7 +127,7 @@ public class VictimsRecord {
         }
         VictimsRecord that = (VictimsRecord) rhs;
 
-        for (Algorithms algorithm : VictimsConfig.algorithms()) {
+        for (Algorithms algorithm : VictimsConfig.currentAlgorithms()) {
             // Copying sets as java.util.Set.equals do not seem to work
             // otherwise
             HashSet<String> thatHashes = new HashSet<String>(that.getHashes(
@@ -144,7 +166,7 @@ public class VictimsRecord {
         }
         VictimsRecord that = (VictimsRecord) o;
 
-        for (Algorithms algorithm : VictimsConfig.algorithms()) {
+        for (Algorithms algorithm : VictimsConfig.currentAlgorithms()) {
             if (!(this.containsAlgorithm(algorithm) && that
                     .containsAlgorithm(algorithm))) {
                 // skip if both this and that do not have the current algorithm
@@ -0,0 +1,279 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.redhat.victims.fingerprint.Algorithms;
+import com.redhat.victims.fingerprint.FingerprintMemo;
+import com.redhat.victims.fingerprint.Processor;
+
+/**
+ * A persistent index of previously scanned files, allowing unchanged files to
+ * be rescanned at the cost of a stat call. Entries are keyed by the absolute
+ * path of the file and everything else its records depend on: the class
+ * normalizer, the configured algorithms and encoding, the entry filter and the
+ * archive limits. An entry is used only if the size and modification time of
+ * the file are unchanged since it was indexed.
+ * 
+ * As a file can be modified without changing either, a sample of the entries
+ * used can be re-verified by comparing the SHA-512 of the file's content.
+ * 
+ * @author abn
+ * 
+ */
+public class VictimsScanIndex {
+    protected static String INDEX_NAME = "lib.scan.index";
+    protected final String location;
+    protected final double verify;
+    private final Random random = new Random();
+
+    /**
+     * Create an index in the victims home, re-verifying the configured
+     * fraction of entries used.
+     * 
+     * @throws VictimsException
+     */
+    public VictimsScanIndex() throws VictimsException {
+        this(FilenameUtils.concat(VictimsConfig.home().toString(), INDEX_NAME),
+                VictimsConfig.scanVerify());
+    }
+
+    /**
+     * 
+     * @param location
+     *            The directory to keep the index in.
+     * @param verify
+     *            The fraction of entries used that are re-verified, between 0
+     *            and 1.
+     * @throws VictimsException
+     */
+    public VictimsScanIndex(String location, double verify)
+            throws VictimsException {
+        this.location = location;
+        this.verify = verify;
+        create(new File(location));
+    }
+
+    /**
+     * Create the index directory.
+     * 
+     * @param index
+     * @throws VictimsException
+     */
+    protected void create(File index) throws VictimsException {
+        try {
+            FileUtils.forceMkdir(index);
+        } catch (IOException e) {
+            throw new VictimsException("Could not create an on disk index", e);
+        }
+    }
+
+    /**
+     * Purge the index. The index directory is removed and re-recreated.
+     * 
+     * @throws VictimsException
+     */
+    public void purge() throws VictimsException {
+        try {
+            File index = new File(location);
+            if (index.exists()) {
+                FileUtils.deleteDirectory(index);
+            }
+            create(index);
+        } catch (IOException e) {
+            throw new VictimsException("Could not purge on disk index.", e);
+        }
+    }
+
+    /**
+     * The name of the index entry for a given file.
+     * 
+     * @param file
+     * @return
+     * @throws VictimsException
+     */
+    protected String key(File file) throws VictimsException {
+        StringBuilder key = new StringBuilder(file.getAbsolutePath());
+        // everything the records of a file depend on besides its content
+        key.append('\0').append(FingerprintMemo.signature());
+        key.append('\0').append(
+                VictimsConfig.entryFilter().getClass().getName());
+        key.append('\0').append(VictimsConfig.archiveDepth());
+        key.append('\0').append(VictimsConfig.archiveBudget());
+        try {
+            MessageDigest mda = MessageDigest
+                    .getInstance(MessageDigestAlgorithms.SHA_256);
+            return Hex.encodeHexString(mda.digest(key.toString().getBytes(
+                    VictimsConfig.charset())));
+        } catch (NoSuchAlgorithmException e) {
+            throw new VictimsException(String.format(
+                    "Could not hash key for: %s", file), e);
+        }
+    }
+
+    /**
+     * Get the records of a previously scanned file.
+     * 
+     * @param file
+     * @return The records of the file, or <code>null</code> if it was not
+     *         indexed or has changed since.
+     */
+    public ArrayList<VictimsRecord> get(File file) {
+        BufferedReader reader = null;
+        try {
+            File entry = FileUtils.getFile(location, key(file));
+            if (!entry.isFile()) {
+                return null;
+            }
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(entry), VictimsConfig.charset()));
+            String[] header = String.valueOf(reader.readLine()).split(" ");
+            if (header.length != 3
+                    || Long.parseLong(header[0]) != file.length()
+                    || Long.parseLong(header[1]) != file.lastModified()) {
+                return null;
+            }
+            if (sample() && !header[2].equals(hash(file))) {
+                return null;
+            }
+            ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    records.add(VictimsRecord.fromJSON(line));
+                }
+            }
+            return records;
+        } catch (VictimsException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // malformed entry
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Index the records of a file scanned in its current state. The last
+     * record is expected to be the record of the file itself.
+     * 
+     * @param file
+     * @param records
+     * @throws VictimsException
+     */
+    public void put(File file, List<VictimsRecord> records)
+            throws VictimsException {
+        put(file, file.length(), file.lastModified(), records);
+    }
+
+    /**
+     * Index the records of a scanned file. The size and modification time
+     * must be read before the file is scanned, so that a change while
+     * scanning invalidates the entry instead of being paired with records of
+     * the old content. The last record is expected to be the record of the
+     * file itself.
+     * 
+     * @param file
+     * @param size
+     *            The length of the file when the scan started.
+     * @param modified
+     *            The modification time of the file when the scan started.
+     * @param records
+     * @throws VictimsException
+     */
+    public void put(File file, long size, long modified,
+            List<VictimsRecord> records) throws VictimsException {
+        if (records.isEmpty()) {
+            return;
+        }
+        String key = key(file);
+        String hash = records.get(records.size() - 1).hash;
+
+        File entry = FileUtils.getFile(location, key);
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".tmp", new File(location));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), VictimsConfig.charset()));
+            try {
+                writer.write(String.format("%d %d %s\n", size, modified, hash));
+                for (VictimsRecord record : records) {
+                    writer.write(record.toString());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (entry.exists()) {
+                FileUtils.forceDelete(entry);
+            }
+            FileUtils.moveFile(temp, entry);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(temp);
+            throw new VictimsException(String.format(
+                    "Could not add index entry for: %s", file), e);
+        }
+    }
+
+    private boolean sample() {
+        if (verify <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < verify;
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return Processor.fingerprint(is).get(Algorithms.SHA512);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
@@ -21,23 +21,41 @@ package com.redhat.victims;
  * #L%
  */
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 
+import com.google.gson.stream.JsonWriter;
+
+import com.redhat.victims.database.VictimsDBInterface;
 import com.redhat.victims.fingerprint.Artifact;
+import com.redhat.victims.fingerprint.FingerprintPool;
+import com.redhat.victims.fingerprint.FingerprintPool.TaskGroup;
 import com.redhat.victims.fingerprint.Processor;
 
 public class VictimsScanner {
+    /**
+     * The maximum number of files found but not yet scanned.
+     */
+    private static final int WALK_QUEUE = 256;
+    private static final int BUFFER = 8192;
+    private static final AtomicInteger SCANS = new AtomicInteger();
 
     /**
      * Scans a provided {@link Artifact} and writes the resulting
@@ -66,37 +84,134 @@ public class VictimsScanner {
      * stream.
      * 
      * @param file
-     * @param os
+     * @param vos
+     * @param index
+     *            If not <code>null</code>, the records are taken from this
+     *            index if the file is unchanged, else the index is updated.
      * @throws IOException
      */
-    private static void scanFile(File file, VictimsOutputStream vos)
-            throws IOException {
+    private static void scanFile(File file, VictimsOutputStream vos,
+            VictimsScanIndex index) throws IOException {
         File f = file;
         String path = f.getAbsolutePath();
-        Artifact artifact = Processor.process(path);
-        scanArtifact(artifact, vos);
+        if (index == null) {
+            Artifact artifact = Processor.process(path);
+            scanArtifact(artifact, vos);
+            return;
+        }
+
+        ArrayList<VictimsRecord> records = index.get(f);
+        if (records == null) {
+            // stat before scanning, a change while scanning must not be
+            // indexed as the scanned state
+            long size = f.length();
+            long modified = f.lastModified();
+            records = new ArrayList<VictimsRecord>();
+            Artifact artifact = Processor.process(path);
+            scanArtifact(artifact, new ArrayOutputStream(records));
+            try {
+                index.put(f, size, modified, records);
+            } catch (VictimsException e) {
+                // the records are still valid, it will be rescanned next time
+            }
+        }
+        for (VictimsRecord record : records) {
+            vos.write(record);
+        }
     }
 
     /**
      * 
      * Iteratively finds all jar files in a given directory and scans them,
      * producing {@link VictimsRecord}. The string values of the resulting
-     * records will be written to the specified output stream.
+     * records will be written to the specified output stream. The directory is
+     * walked in the background, files are scanned as soon as they are found.
      * 
      * @param dir
-     * @param os
+     * @param vos
+     * @param index
+     *            The index of previously scanned files, may be
+     *            <code>null</code>.
+     * @param workers
+     *            The number of files to scan in parallel.
+     * @param ordered
+     *            If set, records are written in the order the files are found,
+     *            else as soon as a file is scanned.
      * @throws IOException
      */
-    private static void scanDir(File dir, VictimsOutputStream vos)
+    private static void scanDir(File dir, VictimsOutputStream vos,
+            VictimsScanIndex index, int workers, boolean ordered)
             throws IOException {
-        Collection<File> files = FileUtils.listFiles(dir, new RegexFileFilter(
-                "^(.*?)\\.jar"), DirectoryFileFilter.DIRECTORY);
-        Iterator<File> fi = files.iterator();
-        while (fi.hasNext()) {
-            scanFile(fi.next(), vos);
+        QueuedWalker files = new QueuedWalker(dir, WALK_QUEUE);
+        try {
+            if (workers <= 1) {
+                File file;
+                while ((file = files.take()) != null) {
+                    scanFile(file, vos, index);
+                }
+            } else {
+                scanFiles(files, vos, index, workers, ordered);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(
+                    "Interrupted while waiting for files to be scanned.", e);
+        } finally {
+            files.close();
         }
     }
 
+    /**
+     * Scan the files provided by a walker in parallel.
+     * 
+     * @param files
+     * @param vos
+     * @param index
+     * @param workers
+     * @param ordered
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void scanFiles(QueuedWalker files, VictimsOutputStream vos,
+            final VictimsScanIndex index, int workers, boolean ordered)
+            throws IOException, InterruptedException {
+        final RecordEmitter emitter = new RecordEmitter(vos, ordered,
+                workers * 2);
+        TaskGroup group = FingerprintPool.shared().group(workers);
+        try {
+            int sequence = 0;
+            File next;
+            while (!emitter.failed() && (next = files.take()) != null) {
+                final File file = next;
+                final int position = sequence++;
+                emitter.reserve(position);
+                group.fork(new Runnable() {
+                    public void run() {
+                        if (emitter.failed()) {
+                            // the scan was stopped, do not start on this file
+                            emitter.deliver(position, null, null);
+                            return;
+                        }
+                        ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+                        try {
+                            scanFile(file, new ArrayOutputStream(records),
+                                    index);
+                            emitter.deliver(position, records, null);
+                        } catch (IOException e) {
+                            emitter.deliver(position, null, e);
+                        } catch (RuntimeException e) {
+                            emitter.deliver(position, null, new IOException(
+                                    String.format("Could not scan file: '%s'",
+                                            file), e));
+                        }
+                    }
+                });
+            }
+        } finally {
+            group.join();
+        }
+        emitter.rethrow();
+    }
+
     /**
      * 
      * Iteratively finds all jar files if source is a directory and scans them
@@ -108,13 +223,21 @@ public class VictimsScanner {
      * @param os
      * @throws IOException
      */
-    private static void scanSource(String source, VictimsOutputStream vos)
-            throws IOException {
+    private static void scanSource(String source, VictimsOutputStream vos,
+            int workers, boolean ordered) throws IOException {
         File f = new File(FilenameUtils.normalize(source));
+        VictimsScanIndex index = null;
+        if (VictimsConfig.scanIncremental()) {
+            try {
+                index = new VictimsScanIndex();
+            } catch (VictimsException e) {
+                throw new IOException("Could not open the scan index.", e);
+            }
+        }
         if (f.isDirectory()) {
-            scanDir(f, vos);
+            scanDir(f, vos, index, workers, ordered);
         } else if (f.isFile()) {
-            scanFile(f, vos);
+            scanFile(f, vos, index);
         } else {
             throw new IOException(String.format("Invalid source file: '%s'",
                     source));
@@ -124,15 +247,59 @@ public class VictimsScanner {
     /**
      * Iteratively finds all jar files if source is a directory and scans them
      * or if a file , scan it. The string values of the resulting records will
-     * be written to the specified output stream. Embedded jars are a record on
-     * their own.
+     * be written to the specified output stream, one per line. Embedded jars
+     * are a record on their own.
      * 
      * @param source
      * @param os
      * @throws IOException
      */
     public static void scan(String source, OutputStream os) throws IOException {
-        scanSource(source, new StringOutputStream(os));
+        scan(source, os, VictimsConfig.scanThreads(),
+                !VictimsConfig.scanUnordered());
+    }
+
+    /**
+     * Iteratively finds all jar files if source is a directory and scans them
+     * in parallel or if a file , scan it. The string values of the resulting
+     * records will be written to the specified output stream. Embedded jars
+     * are a record on their own.
+     * 
+     * @param source
+     * @param os
+     * @param workers
+     *            The number of files to scan in parallel. Scans run on the
+     *            shared fingerprinting pool.
+     * @param ordered
+     *            If set, records are written in the order the files are found,
+     *            else as soon as a file is scanned.
+     * @throws IOException
+     */
+    public static void scan(String source, OutputStream os, int workers,
+            boolean ordered) throws IOException {
+        GZIPOutputStream gzip = null;
+        if (VictimsConfig.gzipOutput()) {
+            gzip = new GZIPOutputStream(os, BUFFER);
+            os = gzip;
+        }
+        StringOutputStream sos = new StringOutputStream(os);
+        boolean scanned = false;
+        try {
+            scanSource(source, sos, workers, ordered);
+            scanned = true;
+        } finally {
+            try {
+                sos.flush();
+                if (gzip != null) {
+                    gzip.finish();
+                }
+            } catch (IOException e) {
+                if (scanned) {
+                    throw e;
+                }
+                // keep the error of the scan
+            }
+        }
     }
 
     /**
@@ -147,7 +314,200 @@ public class VictimsScanner {
      */
     public static void scan(String source, ArrayList<VictimsRecord> results)
             throws IOException {
-        scanSource(source, new ArrayOutputStream(results));
+        scan(source, results, VictimsConfig.scanThreads(),
+                !VictimsConfig.scanUnordered());
+    }
+
+    /**
+     * Iteratively finds all jar files if source is a directory and scans them
+     * in parallel or if a file , scan it. The {@link VictimsRecord}s produced
+     * are added into the provided {@link ArrayList}.Embedded jars are a record
+     * on their own.
+     * 
+     * @param source
+     * @param results
+     * @param workers
+     *            The number of files to scan in parallel. Scans run on the
+     *            shared fingerprinting pool.
+     * @param ordered
+     *            If set, records are added in the order the files are found,
+     *            else as soon as a file is scanned.
+     * @throws IOException
+     */
+    public static void scan(String source, ArrayList<VictimsRecord> results,
+            int workers, boolean ordered) throws IOException {
+        scanSource(source, new ArrayOutputStream(results), workers, ordered);
+    }
+
+    /**
+     * Iteratively finds all jar files if source is a directory and scans them
+     * or if a file , scan it. The {@link VictimsRecord}s produced are written
+     * to the provided {@link VictimsOutputStream}, which is flushed but not
+     * closed once the scan completes. Embedded jars are a record on their own.
+     * 
+     * @param source
+     * @param vos
+     * @throws IOException
+     */
+    public static void scan(String source, VictimsOutputStream vos)
+            throws IOException {
+        scan(source, vos, VictimsConfig.scanThreads(),
+                !VictimsConfig.scanUnordered());
+    }
+
+    /**
+     * Iteratively finds all jar files if source is a directory and scans them
+     * in parallel or if a file , scan it. The {@link VictimsRecord}s produced
+     * are written to the provided {@link VictimsOutputStream}, which is
+     * flushed but not closed once the scan completes. Records are written from
+     * one thread at a time; wrap a slow sink in an {@link AsyncOutputStream}
+     * to keep it from holding up the scan.
+     * 
+     * @param source
+     * @param vos
+     * @param workers
+     *            The number of files to scan in parallel. Scans run on the
+     *            shared fingerprinting pool.
+     * @param ordered
+     *            If set, records are written in the order the files are found,
+     *            else as soon as a file is scanned.
+     * @throws IOException
+     */
+    public static void scan(String source, VictimsOutputStream vos,
+            int workers, boolean ordered) throws IOException {
+        scanSource(source, vos, workers, ordered);
+        vos.flush();
+    }
+
+    /**
+     * Scan the source in the background, providing the {@link VictimsRecord}s
+     * produced as they become available. The scan waits while records are not
+     * consumed, so the iteration should be completed or closed.
+     * 
+     * @param source
+     * @return A blocking iterator over the records derived from the source.
+     *         If the scan fails, the iterator throws an
+     *         {@link IllegalStateException} caused by the error. Closing it
+     *         stops the scan.
+     */
+    public static VictimsIterator<VictimsRecord> iterate(final String source) {
+        final IteratorOutputStream ios = new IteratorOutputStream(WALK_QUEUE);
+        Thread scanner = background("victims-iterate-", new Runnable() {
+            public void run() {
+                try {
+                    scan(source, ios);
+                    ios.close();
+                } catch (IOException e) {
+                    ios.abort(e);
+                } catch (RuntimeException e) {
+                    ios.abort(new IOException("Scan failed.", e));
+                }
+            }
+        });
+        return new BackgroundIterator<VictimsRecord>(ios.iterator(), scanner);
+    }
+
+    /**
+     * Scan the source in the background, matching the {@link VictimsRecord}s
+     * produced against the given database as they become available.
+     * 
+     * @param source
+     * @param db
+     * @return A blocking iterator over each record derived from the source
+     *         with its vulnerabilities. If the scan fails, the iterator throws
+     *         an {@link IllegalStateException} caused by the error. Closing it
+     *         stops the scan and matching.
+     */
+    public static VictimsIterator<VictimsMatch> match(String source,
+            VictimsDBInterface db) {
+        return match(source, db, VictimsConfig.scanThreads(),
+                !VictimsConfig.scanUnordered());
+    }
+
+    /**
+     * Scan the source in the background, in parallel, matching the
+     * {@link VictimsRecord}s produced against the given database as they
+     * become available. Matching runs in its own thread, looking up records
+     * in batches of up to the configured match batch size. The scan waits
+     * while matches are not consumed, so the iteration should be completed or
+     * closed.
+     * 
+     * @param source
+     * @param db
+     *            The database to match against. It is only used from the
+     *            matching thread.
+     * @param workers
+     *            The number of files to scan in parallel.
+     * @param ordered
+     *            If set, matches are provided in the order the files are
+     *            found, else as soon as a file is scanned.
+     * @return A blocking iterator over each record derived from the source
+     *         with its vulnerabilities. Closing it stops the scan and
+     *         matching.
+     */
+    public static VictimsIterator<VictimsMatch> match(final String source,
+            VictimsDBInterface db, final int workers, final boolean ordered) {
+        int batch = VictimsConfig.matchBatch();
+        final MatchOutputStream mos = new MatchOutputStream(db, batch,
+                Math.max(batch * 2, WALK_QUEUE));
+        Thread scanner = background("victims-match-scan-", new Runnable() {
+            public void run() {
+                try {
+                    scan(source, mos, workers, ordered);
+                    mos.close();
+                } catch (IOException e) {
+                    mos.abort(e);
+                } catch (RuntimeException e) {
+                    mos.abort(new IOException("Scan failed.", e));
+                }
+            }
+        });
+        return new BackgroundIterator<VictimsMatch>(mos.iterator(), scanner);
+    }
+
+    /**
+     * Run a scan in a daemon thread.
+     * 
+     * @return The thread started.
+     */
+    private static Thread background(String name, Runnable scan) {
+        Thread scanner = new Thread(scan, name + SCANS.incrementAndGet());
+        scanner.setDaemon(true);
+        scanner.start();
+        return scanner;
+    }
+
+    /**
+     * An iteration over the results of a background scan, interrupting the
+     * scan when closed so that it does not wait for work still in progress.
+     * 
+     * @param <T>
+     */
+    private static class BackgroundIterator<T> implements VictimsIterator<T> {
+        private final VictimsIterator<T> results;
+        private final Thread scanner;
+
+        public BackgroundIterator(VictimsIterator<T> results, Thread scanner) {
+            this.results = results;
+            this.scanner = scanner;
+        }
+
+        public boolean hasNext() {
+            return results.hasNext();
+        }
+
+        public T next() {
+            return results.next();
+        }
+
+        public void remove() {
+            results.remove();
+        }
+
+        public void close() {
+            results.close();
+            scanner.interrupt();
+        }
     }
 
     /**
@@ -185,17 +545,6 @@ public class VictimsScanner {
 
     }
 
-    /**
-     * Inner class to abstract away {@link OutputStream} and {@link ArrayList}
-     * for the purposes of the scanner.
-     * 
-     * @author abn
-     * 
-     */
-    private abstract static class VictimsOutputStream {
-        public abstract void write(VictimsRecord record) throws IOException;
-    }
-
     /**
      * Extends {@link VictimsOutputStream} to handle {@link ArrayList} of
      * {@link VictimsRecord}.
@@ -219,22 +568,270 @@ public class VictimsScanner {
 
     /**
      * Extends {@link VictimsOutputStream} to handle {@link OutputStream}s.
+     * Records are written as newline delimited JSON, serialized straight into a
+     * buffered writer. The stream is not closed.
      * 
      * @author abn
      */
     private static class StringOutputStream extends VictimsOutputStream {
 
-        private final OutputStream os;
+        private final Writer writer;
+        private final JsonWriter json;
 
         public StringOutputStream(OutputStream os) {
-            this.os = os;
+            this.writer = new BufferedWriter(new OutputStreamWriter(os,
+                    VictimsConfig.charset()), BUFFER);
+            this.json = new JsonWriter(writer);
+            // one top-level value per line
+            this.json.setLenient(true);
         }
 
         @Override
         public void write(VictimsRecord record) throws IOException {
-            String line = record.toString();
-            line += "\n";
-            os.write(line.getBytes(VictimsConfig.charset()));
+            record.toJSON(json);
+            writer.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Lazily walks a directory tree depth first, providing all jar files
+     * found. Only the names listed in the directories currently being walked
+     * are held in memory.
+     * 
+     * @author abn
+     * 
+     */
+    private static class JarWalker implements Iterator<File> {
+        private final LinkedList<Listing> stack = new LinkedList<Listing>();
+        private File next = null;
+
+        public JarWalker(File dir) {
+            push(dir);
+        }
+
+        private void push(File dir) {
+            String[] names = dir.list();
+            if (names != null && names.length > 0) {
+                stack.addFirst(new Listing(dir, names));
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Listing listing = stack.getFirst();
+                if (listing.index >= listing.names.length) {
+                    stack.removeFirst();
+                    continue;
+                }
+                File file = new File(listing.dir,
+                        listing.names[listing.index++]);
+                if (file.isDirectory()) {
+                    push(file);
+                } else if (file.getName().endsWith(".jar")) {
+                    next = file;
+                }
+            }
+            return next != null;
+        }
+
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            File file = next;
+            next = null;
+            return file;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * The names in a directory and the position reached in them.
+         */
+        private static class Listing {
+            private final File dir;
+            private final String[] names;
+            private int index = 0;
+
+            public Listing(File dir, String[] names) {
+                this.dir = dir;
+                this.names = names;
+            }
+        }
+    }
+
+    /**
+     * Walks a directory tree in a background thread, handing jar files found
+     * over through a bounded queue. Files can thus be scanned as soon as they
+     * are found, while the walk (eg: on a slow network file system) continues.
+     * 
+     * @author abn
+     * 
+     */
+    private static class QueuedWalker {
+        private static final File END = new File("");
+        private static final AtomicInteger WALKERS = new AtomicInteger();
+
+        private final BlockingQueue<File> queue;
+        private final Thread producer;
+        private volatile RuntimeException error = null;
+        private boolean done = false;
+
+        public QueuedWalker(File dir, int capacity) {
+            final Iterator<File> walker = new JarWalker(dir);
+            this.queue = new ArrayBlockingQueue<File>(capacity);
+            this.producer = new Thread("victims-scan-walker-"
+                    + WALKERS.incrementAndGet()) {
+                @Override
+                public void run() {
+                    try {
+                        while (walker.hasNext()) {
+                            queue.put(walker.next());
+                        }
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        // closed
+                    } catch (RuntimeException e) {
+                        error = e;
+                        queue.clear();
+                        queue.offer(END);
+                    }
+                }
+            };
+            this.producer.setDaemon(true);
+            this.producer.start();
+        }
+
+        /**
+         * Get the next jar file, waiting for it to be found.
+         * 
+         * @return The file, or <code>null</code> if the walk is complete.
+         * @throws IOException
+         *             If the walk failed.
+         * @throws InterruptedException
+         */
+        public File take() throws IOException, InterruptedException {
+            if (done) {
+                return null;
+            }
+            File file = queue.take();
+            if (file == END) {
+                done = true;
+                if (error != null) {
+                    throw new IOException("Could not walk directory.", error);
+                }
+                return null;
+            }
+            return file;
+        }
+
+        /**
+         * Stop walking.
+         */
+        public void close() {
+            done = true;
+            producer.interrupt();
+        }
+    }
+
+    /**
+     * Writes the records of files scanned in parallel to a
+     * {@link VictimsOutputStream}. When ordered, records of files that complete
+     * early are held back until all files found before them are written; the
+     * number of files scanned ahead is bounded by a window.
+     * 
+     * @author abn
+     * 
+     */
+    private static class RecordEmitter {
+        private final VictimsOutputStream vos;
+        private final boolean ordered;
+        private final int window;
+        private final HashMap<Integer, List<VictimsRecord>> pending = new HashMap<Integer, List<VictimsRecord>>();
+        private int next = 0;
+        private IOException error = null;
+
+        public RecordEmitter(VictimsOutputStream vos, boolean ordered,
+                int window) {
+            this.vos = vos;
+            this.ordered = ordered;
+            this.window = Math.max(1, window);
+        }
+
+        /**
+         * Wait until the file with the given index is within the window of
+         * files that may be scanned ahead.
+         * 
+         * @param index
+         * @throws InterruptedException
+         */
+        public synchronized void reserve(int index)
+                throws InterruptedException {
+            while (ordered && error == null && index - next >= window) {
+                wait();
+            }
+        }
+
+        /**
+         * Deliver the records of a scanned file.
+         * 
+         * @param index
+         *            The index of the file in the order found.
+         * @param records
+         *            The records, <code>null</code> if the scan failed.
+         * @param e
+         *            The reason the scan failed, if it did.
+         */
+        public synchronized void deliver(int index,
+                List<VictimsRecord> records, IOException e) {
+            if (e != null && error == null) {
+                error = e;
+            }
+            if (!ordered) {
+                write(records);
+                return;
+            }
+            pending.put(index, records);
+            while (pending.containsKey(next)) {
+                write(pending.remove(next));
+                next++;
+            }
+            notifyAll();
+        }
+
+        private void write(List<VictimsRecord> records) {
+            if (records == null || error != null) {
+                return;
+            }
+            try {
+                for (VictimsRecord record : records) {
+                    vos.write(record);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        public synchronized boolean failed() {
+            return error != null;
+        }
+
+        /**
+         * Throw the first error encountered, if any.
+         * 
+         * @throws IOException
+         */
+        public synchronized void rethrow() throws IOException {
+            if (error != null) {
+                throw error;
+            }
         }
     }
 }
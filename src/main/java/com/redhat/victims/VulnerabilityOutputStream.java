@@ -0,0 +1,87 @@
+package com.redhat.victims;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.HashSet;
+
+import com.redhat.victims.database.VictimsDBInterface;
+
+/**
+ * A {@link VictimsOutputStream} that checks each record against a victims
+ * database as it is written, reporting the records found to be vulnerable.
+ * 
+ * @author abn
+ * 
+ */
+public class VulnerabilityOutputStream extends VictimsOutputStream {
+    private final VictimsDBInterface db;
+    private final Listener listener;
+
+    /**
+     * 
+     * @param db
+     *            The database to check records against.
+     * @param listener
+     *            Notified of every vulnerable record.
+     */
+    public VulnerabilityOutputStream(VictimsDBInterface db, Listener listener) {
+        this.db = db;
+        this.listener = listener;
+    }
+
+    @Override
+    public void write(VictimsRecord record) throws IOException {
+        HashSet<String> cves;
+        try {
+            cves = db.getVulnerabilities(record);
+        } catch (VictimsException e) {
+            throw new IOException(String.format(
+                    "Could not check record: %s", record.hash), e);
+        }
+        if (cves != null && !cves.isEmpty()) {
+            listener.vulnerable(record, cves);
+        }
+    }
+
+    /**
+     * Receives records found to be vulnerable.
+     * 
+     * @author abn
+     * 
+     */
+    public interface Listener {
+
+        /**
+         * 
+         * @param record
+         *            The vulnerable record.
+         * @param cves
+         *            The CVEs the record is vulnerable to.
+         * @throws IOException
+         *             To stop the scan.
+         */
+        public void vulnerable(VictimsRecord record, HashSet<String> cves)
+                throws IOException;
+    }
+}
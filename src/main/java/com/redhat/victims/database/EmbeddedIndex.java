@@ -0,0 +1,288 @@
+package com.redhat.victims.database;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import com.redhat.victims.database.VictimsSQL.Query;
+
+/**
+ * An in-memory inverted index from file hashes to the records containing
+ * them, answering which records are embedded in a set of file hashes without
+ * a query whose cost grows with the size of the database.
+ * 
+ * File hashes are kept as their first 128 bits in sorted primitive arrays,
+ * 20 bytes per file hash, with the number of file hashes of each record
+ * precomputed. As SHA-512 hashes are uniformly distributed, two distinct
+ * hashes sharing a 128 bit prefix is not a practical concern.
+ * 
+ * The index is filled once and then only read, so it can be shared between
+ * threads without locking.
+ * 
+ * @author abn
+ * 
+ */
+public class EmbeddedIndex {
+    private static final int INSERTION_SORT = 16;
+
+    // postings, sorted by (hi, lo) as unsigned
+    private final long[] hi;
+    private final long[] lo;
+    private final int[] record;
+    // by record number
+    private final long[] ids;
+    private final int[] files;
+
+    private EmbeddedIndex(long[] hi, long[] lo, int[] record, long[] ids,
+            int[] files) {
+        this.hi = hi;
+        this.lo = lo;
+        this.record = record;
+        this.ids = ids;
+        this.files = files;
+    }
+
+    /**
+     * Build an index of all file hashes in a database.
+     * 
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    public static EmbeddedIndex build(Connection connection)
+            throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(Query.FILEHASH_COUNT);
+            int expected = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+
+            long[] hi = new long[expected];
+            long[] lo = new long[expected];
+            int[] record = new int[expected];
+            HashMap<Long, Integer> numbers = new HashMap<Long, Integer>();
+            ArrayList<Integer> counts = new ArrayList<Integer>();
+            int size = 0;
+            rs = stmt.executeQuery(Query.FILEHASHES);
+            while (rs.next() && size < expected) {
+                byte[] hash = rs.getBytes(2);
+                if (hash == null || hash.length < 16) {
+                    continue;
+                }
+                long id = rs.getLong(1);
+                Integer number = numbers.get(id);
+                if (number == null) {
+                    number = counts.size();
+                    numbers.put(id, number);
+                    counts.add(0);
+                }
+                counts.set(number, counts.get(number) + 1);
+                hi[size] = word(hash, 0);
+                lo[size] = word(hash, 8);
+                record[size] = number;
+                size++;
+            }
+            rs.close();
+
+            if (size < expected) {
+                hi = copy(hi, size);
+                lo = copy(lo, size);
+                int[] trimmed = new int[size];
+                System.arraycopy(record, 0, trimmed, 0, size);
+                record = trimmed;
+            }
+            sort(hi, lo, record, 0, size - 1);
+
+            long[] ids = new long[counts.size()];
+            int[] files = new int[counts.size()];
+            for (Map.Entry<Long, Integer> entry : numbers.entrySet()) {
+                ids[entry.getValue()] = entry.getKey();
+                files[entry.getValue()] = counts.get(entry.getValue());
+            }
+            return new EmbeddedIndex(hi, lo, record, ids, files);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Find the records all of whose file hashes are among the given ones.
+     * 
+     * @param filehashes
+     *            Distinct binary file hashes.
+     * @return The ids of the records found.
+     */
+    public HashSet<Long> embedded(Iterable<byte[]> filehashes) {
+        HashMap<Integer, int[]> matched = new HashMap<Integer, int[]>();
+        for (byte[] filehash : filehashes) {
+            if (filehash == null || filehash.length < 16) {
+                continue;
+            }
+            long h = word(filehash, 0);
+            long l = word(filehash, 8);
+            for (int at = first(h, l); at < hi.length && hi[at] == h
+                    && lo[at] == l; at++) {
+                int[] count = matched.get(record[at]);
+                if (count == null) {
+                    count = new int[1];
+                    matched.put(record[at], count);
+                }
+                count[0]++;
+            }
+        }
+        HashSet<Long> results = new HashSet<Long>();
+        for (Map.Entry<Integer, int[]> entry : matched.entrySet()) {
+            if (entry.getValue()[0] == files[entry.getKey()]) {
+                results.add(ids[entry.getKey()]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 
+     * @return The number of file hashes indexed.
+     */
+    public int getSize() {
+        return hi.length;
+    }
+
+    /**
+     * 
+     * @return The number of records with file hashes.
+     */
+    public int getRecords() {
+        return ids.length;
+    }
+
+    /**
+     * 
+     * @return The approximate number of bytes used by the index.
+     */
+    public long getMemory() {
+        return hi.length * 20L + ids.length * 12L;
+    }
+
+    /**
+     * The position of the first posting not less than the given key.
+     */
+    private int first(long h, long l) {
+        int low = 0;
+        int high = hi.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(hi[mid], lo[mid], h, l) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(long h1, long l1, long h2, long l2) {
+        if (h1 != h2) {
+            return (h1 ^ Long.MIN_VALUE) < (h2 ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        if (l1 != l2) {
+            return (l1 ^ Long.MIN_VALUE) < (l2 ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static long word(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long[] copy(long[] values, int size) {
+        long[] copy = new long[size];
+        System.arraycopy(values, 0, copy, 0, size);
+        return copy;
+    }
+
+    /**
+     * Sort the postings between the given positions, inclusive. Keys are
+     * uniformly distributed, so a plain quicksort on the middle element
+     * performs well.
+     */
+    private static void sort(long[] hi, long[] lo, int[] record, int left,
+            int right) {
+        while (right - left > INSERTION_SORT) {
+            int mid = (left + right) >>> 1;
+            long ph = hi[mid];
+            long pl = lo[mid];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (compare(hi[i], lo[i], ph, pl) < 0) {
+                    i++;
+                }
+                while (compare(hi[j], lo[j], ph, pl) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(hi, lo, record, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part, loop on the larger
+            if (j - left < right - i) {
+                sort(hi, lo, record, left, j);
+                left = i;
+            } else {
+                sort(hi, lo, record, i, right);
+                right = j;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            for (int j = i; j > left
+                    && compare(hi[j - 1], lo[j - 1], hi[j], lo[j]) > 0; j--) {
+                swap(hi, lo, record, j - 1, j);
+            }
+        }
+    }
+
+    private static void swap(long[] hi, long[] lo, int[] record, int i, int j) {
+        long h = hi[i];
+        hi[i] = hi[j];
+        hi[j] = h;
+        long l = lo[i];
+        lo[i] = lo[j];
+        lo[j] = l;
+        int r = record[i];
+        record[i] = record[j];
+        record[j] = r;
+    }
+}
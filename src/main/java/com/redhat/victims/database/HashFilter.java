@@ -0,0 +1,168 @@
+package com.redhat.victims.database;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Bloom filter over SHA-512 hashes, answering whether a hash is definitely
+ * not in a set, or probably is. As the hashes are uniformly distributed
+ * already, bit positions are derived directly from the hash bytes.
+ * 
+ * The filter is filled once and then only read, so it can be shared between
+ * threads without locking.
+ * 
+ * @author abn
+ * 
+ */
+public class HashFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final long[] bits;
+    private final long size;
+    private final int functions;
+    private long entries = 0;
+
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong positives = new AtomicLong();
+
+    /**
+     * Create an empty filter sized for the given number of hashes.
+     * 
+     * @param expected
+     *            The number of hashes that will be added.
+     * @param fpp
+     *            The desired false positive probability once they are.
+     */
+    public HashFilter(long expected, double fpp) {
+        expected = Math.max(1, expected);
+        fpp = Math.min(0.5, Math.max(Double.MIN_VALUE, fpp));
+        long m = (long) Math.ceil(-expected * Math.log(fpp) / (LN2 * LN2));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1,
+                (m + 63) / 64));
+        this.bits = new long[words];
+        this.size = (long) words * 64;
+        this.functions = Math.max(1,
+                (int) Math.round((double) size / expected * LN2));
+    }
+
+    /**
+     * Add a binary hash. Not thread-safe; all hashes are added before the
+     * filter is shared.
+     * 
+     * @param hash
+     *            At least 16 bytes of a uniformly distributed hash.
+     */
+    public void add(byte[] hash) {
+        long h1 = word(hash, 0);
+        long h2 = word(hash, 8) | 1;
+        for (int i = 0; i < functions; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        entries++;
+    }
+
+    /**
+     * Test a binary hash.
+     * 
+     * @param hash
+     * @return false if the hash was definitely not added, true if it
+     *         probably was.
+     */
+    public boolean mightContain(byte[] hash) {
+        probes.incrementAndGet();
+        if (hash == null || hash.length < 16) {
+            return false;
+        }
+        long h1 = word(hash, 0);
+        long h2 = word(hash, 8) | 1;
+        for (int i = 0; i < functions; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        positives.incrementAndGet();
+        return true;
+    }
+
+    private static long word(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * 
+     * @return The number of hashes added.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * 
+     * @return The number of bytes used by the filter's bits.
+     */
+    public long getMemory() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * 
+     * @return The probability of a hash not added being reported as probably
+     *         added, given the hashes added so far.
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) functions * entries / size),
+                functions);
+    }
+
+    /**
+     * 
+     * @return The number of hashes tested.
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * 
+     * @return The number of hashes tested that were probably added.
+     */
+    public long getPositives() {
+        return positives.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "entries=%d memory=%d bits=%d functions=%d fpp=%.6f "
+                        + "probes=%d positives=%d", entries, getMemory(),
+                size, functions, getFalsePositiveRate(), getProbes(),
+                getPositives());
+    }
+}
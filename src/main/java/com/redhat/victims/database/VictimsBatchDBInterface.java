@@ -0,0 +1,63 @@
+package com.redhat.victims.database;
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.redhat.victims.VictimsException;
+import com.redhat.victims.VictimsRecord;
+
+/**
+ * A {@link VictimsDBInterface} that can also look up a number of records or
+ * hashes at once. Callers holding a plain {@link VictimsDBInterface} should
+ * check for this interface and otherwise look up one record at a time.
+ */
+public interface VictimsBatchDBInterface extends VictimsDBInterface {
+
+    /**
+     * Given a number of {@link VictimsRecord}s, finds all CVEs each artifact
+     * is vulnerable to. Implementations resolve all records together rather
+     * than one at a time.
+     *
+     * @param vrs
+     * @return A map from each record's hash to the CVEs it is vulnerable to.
+     *         Records that are not vulnerable map to an empty set.
+     * @throws VictimsException
+     */
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Collection<VictimsRecord> vrs) throws VictimsException;
+
+    /**
+     * Given a set of sha512 hashes, finds all CVEs the matching records are
+     * vulnerable to.
+     *
+     * @param sha512s
+     * @return A map from each hash to the CVEs it is vulnerable to. Hashes
+     *         not in the database map to an empty set.
+     * @throws VictimsException
+     */
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Set<String> sha512s) throws VictimsException;
+}
@@ -72,7 +72,8 @@ public class VictimsDB {
 
     /**
      * Fetches an instance implementing {@link VictimsDBInterface} using the
-     * configured driver.
+     * configured driver. If configured, hash lookups are served from a
+     * {@link VictimsIndexDB} over the database.
      * 
      * @return A {@link VictimsDBInterface} implementation.
      * @throws VictimsException
@@ -88,7 +89,11 @@ public class VictimsDB {
                                 + VictimsConfig.Key.DB_URL);
             }
         }
-        return (VictimsDBInterface) new VictimsSqlDB();
+        VictimsSqlDB db = new VictimsSqlDB();
+        if (VictimsConfig.dbIndex()) {
+            return new VictimsIndexDB(db);
+        }
+        return db;
     }
 
     /**
@@ -0,0 +1,649 @@
+package com.redhat.victims.database;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import com.redhat.victims.VictimsConfig;
+import com.redhat.victims.VictimsException;
+import com.redhat.victims.VictimsRecord;
+import com.redhat.victims.fingerprint.Algorithms;
+
+/**
+ * A read-only {@link VictimsDBInterface} answering hash lookups from a sorted
+ * index file, memory-mapped from the victims home, instead of the database.
+ * The index holds the record and file hashes of a {@link VictimsSqlDB} with
+ * the CVEs of each record as ids into a table of CVE names. It is rebuilt
+ * whenever it is older than the database: after {@link #synchronize()}, and
+ * when a lookup finds that another instance or process has synchronized the
+ * database, which is checked at most once a second. Property lookups and
+ * updates are handed to the database.
+ * 
+ * @author abn
+ * 
+ */
+public class VictimsIndexDB implements VictimsBatchDBInterface {
+    private static final int MAGIC = 0x56494458;
+    private static final int FORMAT = 1;
+    private static final int HASH = VictimsSQL.Query.HASH_LENGTH;
+    /**
+     * magic, format, stamp, records, postings, cves, lists, postings and
+     * names offsets
+     */
+    private static final int HEADER = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+    /**
+     * hash, first cve id, number of cves, number of file hashes
+     */
+    private static final int RECORD = HASH + 4 + 4 + 4;
+    /**
+     * file hash, record number
+     */
+    private static final int POSTING = HASH + 4;
+
+    private final VictimsSqlDB db;
+    private final File directory;
+    private final String name;
+    private volatile Index index;
+    private volatile long checked;
+    private volatile boolean stale = false;
+
+    /**
+     * Create an index over the given database, building it if it does not
+     * exist or is out of date.
+     * 
+     * @param db
+     * @throws VictimsException
+     */
+    public VictimsIndexDB(VictimsSqlDB db) throws VictimsException {
+        this.db = db;
+        this.directory = FileUtils.getFile(VictimsConfig.home(), "index");
+        this.name = DigestUtils.sha1Hex(db.getUrl());
+        this.index = open();
+        this.checked = System.currentTimeMillis();
+    }
+
+    /**
+     * Identifies the state of the database the index was built from.
+     */
+    private long stamp() throws VictimsException {
+        try {
+            return db.stamp();
+        } catch (SQLException e) {
+            throw new VictimsException("Could not read database state", e);
+        }
+    }
+
+    /**
+     * The index to answer a lookup with. The database is checked at most
+     * every {@link VictimsSqlDB#STAMP_INTERVAL} milliseconds, and the index
+     * rebuilt by the checking thread if another instance or process has
+     * synchronized it.
+     * 
+     * @return The index, or null if the lookup should go to the database.
+     */
+    private Index current() {
+        long now = System.currentTimeMillis();
+        if (now - checked < VictimsSqlDB.STAMP_INTERVAL) {
+            return stale ? null : index;
+        }
+        synchronized (this) {
+            if (now - checked < VictimsSqlDB.STAMP_INTERVAL) {
+                return stale ? null : index;
+            }
+            checked = now;
+        }
+        try {
+            if (stale || stamp() != index.stamp) {
+                stale = true;
+                index = open();
+                stale = false;
+            }
+            return index;
+        } catch (VictimsException e) {
+            // rebuilt on the next check
+            return null;
+        }
+    }
+
+    /**
+     * Open the index file built for the current state of the database,
+     * building it if there is none. Index files are never replaced in place,
+     * as a mapped file cannot be deleted on some platforms; each build is
+     * written to a new file, and files of older states are removed once they
+     * are no longer mapped.
+     */
+    private Index open() throws VictimsException {
+        long stamp = stamp();
+        String prefix = String.format("%s-%x-", name, stamp);
+        File file = null;
+        try {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File candidate : files) {
+                    String filename = candidate.getName();
+                    if (filename.startsWith(prefix)
+                            && filename.endsWith(".idx")) {
+                        Index current = new Index(candidate);
+                        if (current.stamp == stamp) {
+                            file = candidate;
+                            return current;
+                        }
+                    }
+                }
+            }
+            file = build(prefix, stamp);
+            return new Index(file);
+        } catch (IOException e) {
+            throw new VictimsException("Could not open hash index: "
+                    + directory, e);
+        } catch (SQLException e) {
+            throw new VictimsException("Could not build hash index: "
+                    + directory, e);
+        } finally {
+            if (file != null) {
+                clean(file);
+            }
+        }
+    }
+
+    /**
+     * Remove the index files of this database other than the given one.
+     * Files still mapped elsewhere may not be removable yet, and are removed
+     * by a later build instead.
+     */
+    private void clean(File keep) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String filename = file.getName();
+            if (filename.startsWith(name + "-") && filename.endsWith(".idx")
+                    && !file.equals(keep)) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Write a new index file from the database.
+     * 
+     * @return The new file, named with the given prefix.
+     */
+    private File build(String prefix, long stamp) throws IOException,
+            SQLException {
+        ArrayList<Entry> records = new ArrayList<Entry>();
+        ArrayList<Entry> postings = new ArrayList<Entry>();
+        HashMap<Long, Entry> byId = new HashMap<Long, Entry>();
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        ArrayList<String> names = new ArrayList<String>();
+
+        Connection connection = db.getConnection();
+        try {
+            Statement stmt = connection.createStatement();
+            ResultSet rs = stmt.executeQuery(VictimsSQL.Query.RECORD_IDS);
+            while (rs.next()) {
+                byte[] hash = rs.getBytes(2);
+                if (hash != null && hash.length == HASH) {
+                    Entry record = new Entry(hash);
+                    records.add(record);
+                    byId.put(rs.getLong(1), record);
+                }
+            }
+            rs.close();
+            rs = stmt.executeQuery(VictimsSQL.Query.ALL_CVES);
+            while (rs.next()) {
+                Entry record = byId.get(rs.getLong(1));
+                if (record == null) {
+                    continue;
+                }
+                String cve = rs.getString(2);
+                Integer id = ids.get(cve);
+                if (id == null) {
+                    id = names.size();
+                    ids.put(cve, id);
+                    names.add(cve);
+                }
+                record.cves.add(id);
+            }
+            rs.close();
+            rs = stmt.executeQuery(VictimsSQL.Query.FILEHASHES);
+            while (rs.next()) {
+                Entry record = byId.get(rs.getLong(1));
+                byte[] hash = rs.getBytes(2);
+                if (record != null && hash != null && hash.length == HASH) {
+                    record.files++;
+                    postings.add(new Entry(hash, record));
+                }
+            }
+            rs.close();
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        Entry[] sortedRecords = records.toArray(new Entry[records.size()]);
+        Arrays.sort(sortedRecords, Entry.ORDER);
+        for (int i = 0; i < sortedRecords.length; i++) {
+            sortedRecords[i].number = i;
+        }
+        Entry[] sortedPostings = postings.toArray(new Entry[postings.size()]);
+        Arrays.sort(sortedPostings, Entry.ORDER);
+
+        long lists = HEADER + (long) sortedRecords.length * RECORD;
+        long cves = 0;
+        for (Entry record : sortedRecords) {
+            cves += record.cves.size();
+        }
+        long postingsAt = lists + cves * 4;
+        long namesAt = postingsAt + (long) sortedPostings.length * POSTING;
+        if (namesAt > Integer.MAX_VALUE) {
+            throw new IOException("Database too large to index");
+        }
+
+        FileUtils.forceMkdir(directory);
+        File temp = File.createTempFile(prefix, ".tmp", directory);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(stamp);
+                out.writeInt(sortedRecords.length);
+                out.writeInt(sortedPostings.length);
+                out.writeInt(names.size());
+                out.writeInt((int) lists);
+                out.writeInt((int) postingsAt);
+                out.writeInt((int) namesAt);
+                int first = 0;
+                for (Entry record : sortedRecords) {
+                    out.write(record.hash);
+                    out.writeInt(first);
+                    out.writeInt(record.cves.size());
+                    out.writeInt(record.files);
+                    first += record.cves.size();
+                }
+                for (Entry record : sortedRecords) {
+                    for (Integer id : record.cves) {
+                        out.writeInt(id);
+                    }
+                }
+                for (Entry posting : sortedPostings) {
+                    out.write(posting.hash);
+                    out.writeInt(posting.record.number);
+                }
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+            } finally {
+                out.close();
+            }
+            // a fresh name, as the temporary file's name is unique
+            File file = new File(directory, temp.getName().replaceFirst(
+                    "\\.tmp$", ".idx"));
+            FileUtils.moveFile(temp, file);
+            return file;
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * The CVEs of the record at the given position.
+     */
+    private static void addCves(Index index, int record, HashSet<String> cves) {
+        int at = HEADER + record * RECORD + HASH;
+        int first = index.buffer.getInt(at);
+        int count = index.buffer.getInt(at + 4);
+        for (int i = 0; i < count; i++) {
+            cves.add(index.names[index.buffer.getInt(index.lists + (first + i)
+                    * 4)]);
+        }
+    }
+
+    public HashSet<String> getVulnerabilities(String sha512)
+            throws VictimsException {
+        Index current = current();
+        if (current == null) {
+            return db.getVulnerabilities(sha512);
+        }
+        HashSet<String> cves = new HashSet<String>();
+        byte[] hash = VictimsSQL.binary(sha512);
+        if (hash != null) {
+            int record = current.findRecord(key(hash));
+            if (record >= 0) {
+                addCves(current, record, cves);
+            }
+        }
+        return cves;
+    }
+
+    public HashSet<String> getVulnerabilities(VictimsRecord vr)
+            throws VictimsException {
+        Index current = current();
+        if (current == null) {
+            return db.getVulnerabilities(vr);
+        }
+        HashSet<String> cves = new HashSet<String>();
+        byte[] hash = VictimsSQL.binary(vr.hash);
+        if (hash != null) {
+            int record = current.findRecord(key(hash));
+            if (record >= 0) {
+                addCves(current, record, cves);
+            }
+        }
+
+        // records all of whose file hashes are in this record
+        HashMap<Integer, Integer> matched = new HashMap<Integer, Integer>();
+        for (String filehash : vr.getHashes(Algorithms.SHA512).keySet()) {
+            byte[] bytes = VictimsSQL.binary(filehash);
+            if (bytes == null) {
+                continue;
+            }
+            long[] key = key(bytes);
+            int at = current.findPosting(key);
+            while (at >= 0 && at < current.postings
+                    && current.compare(current.postingsAt + at * POSTING, key) == 0) {
+                int record = current.buffer.getInt(current.postingsAt + at
+                        * POSTING + HASH);
+                Integer count = matched.get(record);
+                matched.put(record, count == null ? 1 : count + 1);
+                at++;
+            }
+        }
+        for (Integer record : matched.keySet()) {
+            int files = current.buffer.getInt(HEADER + record * RECORD + HASH
+                    + 8);
+            if (matched.get(record) == files) {
+                addCves(current, record, cves);
+            }
+        }
+        return cves;
+    }
+
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Collection<VictimsRecord> vrs) throws VictimsException {
+        HashMap<String, HashSet<String>> results = new HashMap<String, HashSet<String>>();
+        for (VictimsRecord vr : vrs) {
+            if (!results.containsKey(vr.hash)) {
+                results.put(vr.hash, getVulnerabilities(vr));
+            }
+        }
+        return results;
+    }
+
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Set<String> sha512s) throws VictimsException {
+        HashMap<String, HashSet<String>> results = new HashMap<String, HashSet<String>>();
+        for (String sha512 : sha512s) {
+            results.put(sha512, getVulnerabilities(sha512));
+        }
+        return results;
+    }
+
+    public HashSet<String> getVulnerabilities(HashMap<String, String> props)
+            throws VictimsException {
+        return db.getVulnerabilities(props);
+    }
+
+    public Date lastUpdated() throws VictimsException {
+        return db.lastUpdated();
+    }
+
+    /**
+     * Synchronize the database and rebuild the index if it changed.
+     */
+    public void synchronize() throws VictimsException {
+        db.synchronize();
+        stale = true;
+        index = open();
+        checked = System.currentTimeMillis();
+        stale = false;
+    }
+
+    public int getRecordCount() throws VictimsException {
+        return db.getRecordCount();
+    }
+
+    /**
+     * 
+     * @return The size of the index file in bytes.
+     */
+    public long getSize() {
+        return index.buffer.capacity();
+    }
+
+    /**
+     * A hash as 8 longs, compared as unsigned.
+     */
+    private static long[] key(byte[] hash) {
+        ByteBuffer buffer = ByteBuffer.wrap(hash);
+        long[] key = new long[HASH / 8];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = buffer.getLong();
+        }
+        return key;
+    }
+
+    /**
+     * A mapped index file.
+     */
+    private static class Index {
+        final ByteBuffer buffer;
+        final long stamp;
+        final int records;
+        final int postings;
+        final int lists;
+        final int postingsAt;
+        final String[] names;
+
+        Index(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } finally {
+                raf.close();
+            }
+            // anything but a complete index never matches a database stamp,
+            // so it is rebuilt
+            String[] names = null;
+            if (buffer.capacity() >= HEADER && buffer.getInt(0) == MAGIC
+                    && buffer.getInt(4) == FORMAT && consistent()) {
+                names = names();
+            }
+            if (names == null) {
+                stamp = -1;
+                records = postings = lists = postingsAt = 0;
+                this.names = new String[0];
+                return;
+            }
+            stamp = buffer.getLong(8);
+            records = buffer.getInt(16);
+            postings = buffer.getInt(20);
+            lists = buffer.getInt(28);
+            postingsAt = buffer.getInt(32);
+            this.names = names;
+        }
+
+        /**
+         * @return true if the sections of the file fit in it, in order.
+         */
+        private boolean consistent() {
+            int records = buffer.getInt(16);
+            int postings = buffer.getInt(20);
+            int count = buffer.getInt(24);
+            int lists = buffer.getInt(28);
+            int postingsAt = buffer.getInt(32);
+            int namesAt = buffer.getInt(36);
+            return records >= 0 && postings >= 0 && count >= 0
+                    && HEADER + (long) records * RECORD <= lists
+                    && lists <= postingsAt
+                    && postingsAt + (long) postings * POSTING <= namesAt
+                    && namesAt + 2L * count <= buffer.capacity();
+        }
+
+        /**
+         * @return The CVE names, or null if the file is truncated.
+         */
+        private String[] names() throws IOException {
+            String[] names = new String[buffer.getInt(24)];
+            ByteBuffer in = buffer.duplicate();
+            in.position(buffer.getInt(36));
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    byte[] utf = new byte[in.getShort() & 0xffff];
+                    in.get(utf);
+                    names[i] = new String(utf, "UTF-8");
+                }
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+            return names;
+        }
+
+        /**
+         * Compare the hash at the given offset with a key.
+         */
+        int compare(int at, long[] key) {
+            for (int i = 0; i < key.length; i++) {
+                long value = buffer.getLong(at + i * 8);
+                if (value != key[i]) {
+                    return (value ^ Long.MIN_VALUE) < (key[i] ^ Long.MIN_VALUE) ? -1
+                            : 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The position of the record with the given hash, or -1.
+         */
+        int findRecord(long[] key) {
+            int low = 0;
+            int high = records - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(HEADER + mid * RECORD, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The position of the first posting with the given file
+         *         hash, or -1.
+         */
+        int findPosting(long[] key) {
+            int low = 0;
+            int high = postings;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(postingsAt + mid * POSTING, key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low < postings && compare(postingsAt + low * POSTING, key) == 0) {
+                return low;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A record or file hash while building the index.
+     */
+    private static class Entry {
+        static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                for (int i = 0; i < HASH; i++) {
+                    int x = a.hash[i] & 0xff;
+                    int y = b.hash[i] & 0xff;
+                    if (x != y) {
+                        return x < y ? -1 : 1;
+                    }
+                }
+                return 0;
+            }
+        };
+
+        final byte[] hash;
+        // the record of a file hash
+        final Entry record;
+        // the cve ids, number of file hashes and position of a record
+        final ArrayList<Integer> cves;
+        int files = 0;
+        int number = 0;
+
+        /**
+         * A record.
+         */
+        Entry(byte[] hash) {
+            this.hash = hash;
+            this.record = null;
+            this.cves = new ArrayList<Integer>();
+        }
+
+        /**
+         * A file hash of a record.
+         */
+        Entry(byte[] hash, Entry record) {
+            this.hash = hash;
+            this.record = record;
+            this.cves = null;
+        }
+    }
+}
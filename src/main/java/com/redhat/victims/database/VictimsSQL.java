@@ -23,13 +23,15 @@ package com.redhat.victims.database;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Set;
+import java.util.logging.Logger;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import com.redhat.victims.VictimsConfig;
@@ -43,10 +45,13 @@ import com.redhat.victims.VictimsException;
  *
  */
 public class VictimsSQL {
+    protected static final Logger LOG = Logger.getLogger(VictimsSQL.class
+            .getName());
     private String dbDriver = null;
     private String dbUrl = null;
     private String dbUser = null;
     private String dbPass = null;
+    private VictimsSqlManager pool = null;
 
     /**
      * Get a new connection from the {@link VictimsSqlManager} pool.
@@ -55,7 +60,25 @@ public class VictimsSQL {
      * @throws SQLException
      */
     protected Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(dbUrl, dbUser, dbPass);
+        return pool.getConnection();
+    }
+
+    /**
+     * The connection string of this database, without username and password.
+     *
+     * @return
+     */
+    protected String getUrl() {
+        return dbUrl;
+    }
+
+    /**
+     * The connection pool shared by all instances using this database.
+     *
+     * @return
+     */
+    public VictimsSqlManager getPool() {
+        return pool;
     }
 
     protected boolean isSetUp(Connection connection) throws SQLException {
@@ -68,7 +91,70 @@ public class VictimsSQL {
     }
 
     /**
-     * Initializes a database by created required tables.
+     * Get the schema version of a set up database. Databases created before
+     * the schema was versioned are version 1.
+     *
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    protected int schemaVersion(Connection connection) throws SQLException {
+        DatabaseMetaData dbm = connection.getMetaData();
+        ResultSet rs = dbm.getTables(null, null, "SCHEMA_VERSION", null);
+        boolean versioned = rs.next();
+        rs.close();
+        if (!versioned) {
+            return 1;
+        }
+        int version = 1;
+        Statement stmt = connection.createStatement();
+        try {
+            rs = stmt.executeQuery(Query.SCHEMA_VERSION);
+            if (rs.next()) {
+                version = rs.getInt(1);
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return version;
+    }
+
+    /**
+     * Upgrade a database in place from the given schema version to
+     * {@link Query#VERSION}, one version at a time.
+     *
+     * @param connection
+     * @param version
+     * @throws SQLException
+     */
+    protected void migrate(Connection connection, int version)
+            throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            while (version < Query.VERSION) {
+                for (String query : Query.MIGRATIONS[version - 1]) {
+                    stmt.execute(query);
+                    int count = stmt.getUpdateCount();
+                    if (count > 0 && query.startsWith("DELETE")) {
+                        LOG.warning(String.format(
+                                "Schema upgrade to version %d dropped %d "
+                                        + "rows without a SHA-512 hash: %s",
+                                version + 1, count, query));
+                    }
+                }
+                version++;
+            }
+            stmt.execute(Query.CLEAR_SCHEMA_VERSION);
+            stmt.execute(String.format(Query.SET_SCHEMA_VERSION, version));
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Initializes a database by created required tables, or upgrades the
+     * tables of an older database.
      *
      * @throws SQLException
      */
@@ -81,13 +167,55 @@ public class VictimsSQL {
                 stmt.execute(Query.CREATE_TABLE_FILEHASHES);
                 stmt.execute(Query.CREATE_TABLE_META);
                 stmt.execute(Query.CREATE_TABLE_CVES);
+                for (String query : Query.CREATE_INDEXES) {
+                    stmt.execute(query);
+                }
+                stmt.execute(Query.CREATE_TABLE_SCHEMA_VERSION);
+                stmt.execute(String.format(Query.SET_SCHEMA_VERSION,
+                        Query.VERSION));
                 stmt.close();
+                return;
+            }
+            int version = schemaVersion(connection);
+            if (version < Query.VERSION) {
+                connection.setAutoCommit(false);
+                try {
+                    migrate(connection, version);
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
             }
         } finally {
             connection.close();
         }
     }
 
+    /**
+     * Convert a hex encoded SHA-512 hash to the binary form stored.
+     *
+     * @param hash
+     * @return The hash bytes, or null if the given string is not a hex
+     *         encoded SHA-512 hash and so cannot be in the database.
+     */
+    protected static byte[] binary(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        hash = hash.trim();
+        if (hash.length() != Query.HASH_LENGTH * 2) {
+            return null;
+        }
+        try {
+            return Hex.decodeHex(hash.toCharArray());
+        } catch (DecoderException e) {
+            return null;
+        }
+    }
+
     public VictimsSQL() throws VictimsException {
         try {
             dbDriver = VictimsConfig.dbDriver();
@@ -95,6 +223,7 @@ public class VictimsSQL {
             dbUser = VictimsConfig.dbUser();
             dbPass = VictimsConfig.dbPass();
             Class.forName(dbDriver);
+            pool = VictimsSqlManager.pool(dbUrl, dbUser, dbPass);
             setUp();
         } catch (Throwable t) {
             throw new VictimsException(
@@ -104,7 +233,9 @@ public class VictimsSQL {
     }
 
     /**
-     * Wrapper to create a prepared statement.
+     * Wrapper to create a prepared statement. Statements for the fixed
+     * {@link Query} strings are cached by the pooled connection; closing them
+     * returns them to the cache.
      *
      * @param connection
      * @param query
@@ -199,24 +330,42 @@ public class VictimsSQL {
      * @throws SQLException
      */
     protected int selectRecordId(String hash) throws SQLException {
-        int id = -1;
         Connection connection = getConnection();
         try {
-            PreparedStatement ps = setObjects(connection, Query.GET_RECORD_ID,
-                    hash);
-            ResultSet rs = ps.executeQuery();
-            try {
-                while (rs.next()) {
-                    id = rs.getInt("id");
-                    break;
-                }
-            } finally {
-                rs.close();
-                ps.close();
-            }
+            return selectRecordId(connection, hash);
         } finally {
             connection.close();
         }
+    }
+
+    /**
+     * Given a hash get the first occurance's record id, using the given
+     * connection.
+     *
+     * @param connection
+     * @param hash
+     * @return
+     * @throws SQLException
+     */
+    protected int selectRecordId(Connection connection, String hash)
+            throws SQLException {
+        int id = -1;
+        byte[] bytes = binary(hash);
+        if (bytes == null) {
+            return id;
+        }
+        PreparedStatement ps = setObjects(connection, Query.GET_RECORD_ID,
+                bytes);
+        ResultSet rs = ps.executeQuery();
+        try {
+            while (rs.next()) {
+                id = rs.getInt("id");
+                break;
+            }
+        } finally {
+            rs.close();
+            ps.close();
+        }
         return id;
     }
 
@@ -224,13 +373,20 @@ public class VictimsSQL {
      * Insert a new record with the given hash and return the record id.
      *
      * @param hash
+     * @param filecount
+     *            The number of file hashes that will be stored for the record.
      * @return A record id if it was created correctly, else return -1.
      * @throws SQLException
      */
-    protected int insertRecord(Connection connection, String hash)
-            throws SQLException {
+    protected int insertRecord(Connection connection, String hash,
+            int filecount) throws SQLException {
         int id = -1;
-        PreparedStatement ps = setObjects(connection, Query.INSERT_RECORD, hash);
+        byte[] bytes = binary(hash);
+        if (bytes == null) {
+            return id;
+        }
+        PreparedStatement ps = setObjects(connection, Query.INSERT_RECORD,
+                bytes, filecount);
         ps.execute();
         ResultSet rs = ps.getGeneratedKeys();
         try {
@@ -255,7 +411,7 @@ public class VictimsSQL {
      */
     protected void deleteRecord(Connection connection, String hash)
             throws SQLException {
-        int id = selectRecordId(hash);
+        int id = selectRecordId(connection, hash);
         if (id > 0) {
             String[] queries = new String[] { Query.DELETE_FILEHASHES,
                     Query.DELETE_METAS, Query.DELETE_CVES,
@@ -275,12 +431,21 @@ public class VictimsSQL {
      *
      */
     protected static class Query {
+        /**
+         * The current schema version.
+         */
+        protected final static int VERSION = 3;
+        /**
+         * The number of bytes in a stored hash.
+         */
+        protected final static int HASH_LENGTH = 64;
+
         protected final static String CREATE_TABLE_RECORDS = "CREATE TABLE records ( "
                 + "id BIGINT PRIMARY KEY AUTO_INCREMENT, "
-                + "hash VARCHAR(128)" + ")";
+                + "hash BINARY(64), " + "filecount INT DEFAULT 0" + ")";
         protected final static String CREATE_TABLE_FILEHASHES = "CREATE TABLE filehashes ("
                 + "record BIGINT, "
-                + "filehash VARCHAR(128), "
+                + "filehash BINARY(64), "
                 + "FOREIGN KEY(record) REFERENCES records(id) "
                 + "ON DELETE CASCADE" + ")";
         protected final static String CREATE_TABLE_META = "CREATE TABLE meta ("
@@ -293,10 +458,48 @@ public class VictimsSQL {
                 + "FOREIGN KEY(record) REFERENCES records(id) "
                 + "ON DELETE CASCADE" + ")";
 
+        protected final static String CREATE_TABLE_SCHEMA_VERSION = "CREATE TABLE schema_version (version INT)";
+        protected final static String[] CREATE_INDEXES = new String[] {
+                "CREATE INDEX IF NOT EXISTS records_hash ON records(hash)",
+                "CREATE INDEX IF NOT EXISTS filehashes_filehash ON filehashes(filehash, record)",
+                "CREATE INDEX IF NOT EXISTS filehashes_record ON filehashes(record)",
+                "CREATE INDEX IF NOT EXISTS meta_prop ON meta(prop, value)",
+                "CREATE INDEX IF NOT EXISTS meta_record ON meta(record)",
+                "CREATE INDEX IF NOT EXISTS cves_record ON cves(record)" };
+
+        /**
+         * Statements upgrading the schema of a database, where the n-th entry
+         * upgrades version n to n + 1.
+         */
+        protected final static String[][] MIGRATIONS = new String[][] {
+        // 1 to 2: hex hashes to binary, add indexes
+        concat(new String[] {
+                "DELETE FROM filehashes WHERE NOT (filehash REGEXP '^[0-9a-fA-F]{128}$')",
+                "DELETE FROM records WHERE NOT (hash REGEXP '^[0-9a-fA-F]{128}$')",
+                "ALTER TABLE records ALTER COLUMN hash BINARY(64)",
+                "ALTER TABLE filehashes ALTER COLUMN filehash BINARY(64)",
+                CREATE_TABLE_SCHEMA_VERSION }, CREATE_INDEXES),
+        // 2 to 3: materialize the number of file hashes of each record
+        new String[] {
+                "ALTER TABLE records ADD COLUMN IF NOT EXISTS filecount INT DEFAULT 0",
+                "UPDATE records SET filecount = (SELECT COUNT(*) FROM filehashes "
+                        + "WHERE filehashes.record = records.id)" } };
+
+        protected final static String SCHEMA_VERSION = "SELECT MAX(version) FROM schema_version";
+        protected final static String CLEAR_SCHEMA_VERSION = "DELETE FROM schema_version";
+        protected final static String SET_SCHEMA_VERSION = "INSERT INTO schema_version (version) VALUES (%d)";
+
+        private static String[] concat(String[] first, String[] second) {
+            String[] result = new String[first.length + second.length];
+            System.arraycopy(first, 0, result, 0, first.length);
+            System.arraycopy(second, 0, result, first.length, second.length);
+            return result;
+        }
+
         protected static final String INSERT_FILEHASH = "INSERT INTO filehashes (record, filehash) VALUES (?, ?)";
         protected final static String INSERT_META = "INSERT INTO meta (record, prop, value) VALUES (?, ?, ?)";
         protected final static String INSERT_CVES = "INSERT INTO cves (record, cve) VALUES (?, ?)";
-        protected final static String INSERT_RECORD = "INSERT INTO records (hash) VALUES (?)";
+        protected final static String INSERT_RECORD = "INSERT INTO records (hash, filecount) VALUES (?, ?)";
 
         protected final static String GET_RECORD_ID = "SELECT id FROM records WHERE hash = ?";
         protected final static String FIND_CVES = "SELECT cve FROM cves WHERE record = ?";
@@ -306,19 +509,49 @@ public class VictimsSQL {
         protected final static String DELETE_FILEHASHES = "DELETE FROM filehashes WHERE record = ?";
         protected final static String DELETE_METAS = "DELETE FROM meta WHERE record = ?";
         protected final static String DELETE_CVES = "DELETE FROM cves WHERE record = ?";
+        protected final static String DELETE_FILEHASHES_IN = "DELETE FROM filehashes WHERE record IN "
+                + "(SELECT records.id FROM TABLE(h binary=?) t INNER JOIN records ON t.h = records.hash)";
+        protected final static String DELETE_METAS_IN = "DELETE FROM meta WHERE record IN "
+                + "(SELECT records.id FROM TABLE(h binary=?) t INNER JOIN records ON t.h = records.hash)";
+        protected final static String DELETE_CVES_IN = "DELETE FROM cves WHERE record IN "
+                + "(SELECT records.id FROM TABLE(h binary=?) t INNER JOIN records ON t.h = records.hash)";
+        protected final static String DELETE_RECORDS_IN = "DELETE FROM records WHERE hash IN "
+                + "(SELECT h FROM TABLE(h binary=?))";
+        protected final static String RECORD_IDS_IN = "SELECT t.h, records.id "
+                + "FROM TABLE(h binary=?) t INNER JOIN records ON t.h = records.hash";
 
         protected final static String FILEHASH_MATCHES_PER_RECORD = "SELECT record, count(filehash) FROM filehashes "
                 + "WHERE filehash IN (?) " + "GROUP BY record";
         protected final static String FILEHASH_EMBEDDED_MATCH = "SELECT m.record FROM"
-                + "(SELECT record, count(*) AS count FROM TABLE(h varchar=?) t "
-                + "INNER JOIN filehashes ON t.h = filehashes.filehash GROUP BY filehashes.record) as m, "
-                + "(SELECT record, count(*) as count FROM filehashes GROUP BY record) as rc "
-                + "WHERE rc.record = m.record AND rc.count = m.count;";
+                + "(SELECT record, count(*) AS count FROM TABLE(h binary=?) t "
+                + "INNER JOIN filehashes ON t.h = filehashes.filehash GROUP BY filehashes.record) as m "
+                + "INNER JOIN records ON records.id = m.record "
+                + "AND records.filecount = m.count";
+        protected final static String FIND_RECORD_CVES = "SELECT t.i, cves.cve "
+                + "FROM TABLE(i int=?, h binary=?) t "
+                + "INNER JOIN records ON t.h = records.hash "
+                + "INNER JOIN cves ON cves.record = records.id";
+        protected final static String FIND_CVES_IN = "SELECT cves.record, cves.cve "
+                + "FROM TABLE(id bigint=?) t "
+                + "INNER JOIN cves ON t.id = cves.record";
+        protected final static String FILEHASH_EMBEDDED_MATCHES = "SELECT m.input, m.record FROM"
+                + "(SELECT t.i AS input, filehashes.record AS record, count(*) AS count "
+                + "FROM TABLE(i int=?, h binary=?) t "
+                + "INNER JOIN filehashes ON t.h = filehashes.filehash "
+                + "GROUP BY t.i, filehashes.record) as m "
+                + "INNER JOIN records ON records.id = m.record "
+                + "AND records.filecount = m.count";
         protected final static String FILEHASHES = "SELECT record, filehash FROM filehashes";
         protected final static String PROPERTY_MATCH = "SELECT record, COUNT(record) as count "
                 + "FROM TABLE (p varchar =  ?, v varchar = ? ) t "
                 + "INNER JOIN meta ON t.p = meta.prop AND t.v = meta.value "
                 + "GROUP BY record";
         protected final static String RECORD_COUNT = "SELECT COUNT(*) from records";
+        protected final static String RECORD_STAMP = "SELECT COUNT(*), MAX(id) FROM records";
+        protected final static String FILEHASH_COUNT = "SELECT COUNT(*) FROM filehashes";
+        protected final static String ALL_RECORD_HASHES = "SELECT hash FROM records";
+        protected final static String ALL_FILEHASHES = "SELECT filehash FROM filehashes";
+        protected final static String RECORD_IDS = "SELECT id, hash FROM records";
+        protected final static String ALL_CVES = "SELECT record, cve FROM cves";
     }
 }
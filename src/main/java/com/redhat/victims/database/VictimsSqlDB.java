@@ -31,11 +31,15 @@ import java.sql.Savepoint;
 import java.sql.Statement;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 
 import com.redhat.victims.VictimsConfig;
@@ -52,11 +56,20 @@ import com.redhat.victims.fingerprint.Algorithms;
  * @author abn
  *
  */
-public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
+public class VictimsSqlDB extends VictimsSQL implements
+        VictimsBatchDBInterface {
     // The default file for storing the last sync'ed {@link Date}
     protected static final String UPDATE_FILE_NAME = "lastUpdate";
     protected File lastUpdate;
     protected VictimsResultCache cache;
+    // How often shared in-memory structures are checked against the database
+    protected static final long STAMP_INTERVAL = 1000;
+    // Bloom filters over the hashes in each database, by connection pool
+    private static final HashMap<VictimsSqlManager, Filters> FILTERS = new HashMap<VictimsSqlManager, Filters>();
+    private final Filters filters;
+    // inverted file hash indexes of each database, by connection pool
+    private static final HashMap<VictimsSqlManager, Postings> POSTINGS = new HashMap<VictimsSqlManager, Postings>();
+    private final Postings postings;
 
     /**
      * Create a new instance with the given parameters.
@@ -76,6 +89,319 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
         super();
         lastUpdate = FileUtils.getFile(VictimsConfig.home(), UPDATE_FILE_NAME);
         cache = new VictimsResultCache();
+        try {
+            filters = filters();
+        } catch (SQLException e) {
+            throw new VictimsException("Could not build hash filters", e);
+        }
+        postings = postings();
+    }
+
+    /**
+     * Get the inverted file hash index shared by all instances using this
+     * database. The index itself is only built on the first embedded lookup.
+     *
+     * @return The index, or null if disabled.
+     */
+    private Postings postings() {
+        if (!VictimsConfig.dbPostings()) {
+            return null;
+        }
+        synchronized (POSTINGS) {
+            Postings shared = POSTINGS.get(getPool());
+            if (shared == null) {
+                shared = new Postings();
+                POSTINGS.put(getPool(), shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Build a new inverted file hash index from the database, replacing the
+     * given one's current index once done.
+     *
+     * @param shared
+     * @param connection
+     * @throws SQLException
+     */
+    protected void buildPostings(Postings shared, Connection connection)
+            throws SQLException {
+        shared.index = EmbeddedIndex.build(connection);
+    }
+
+    /**
+     * The inverted file hash index answering embedded lookups.
+     *
+     * @return The index, or null if disabled or not built yet.
+     */
+    public EmbeddedIndex getEmbeddedIndex() {
+        return postings == null ? null : postings.index;
+    }
+
+    /**
+     * The inverted file hash index to answer an embedded lookup with, built
+     * or rebuilt if necessary using the connection the caller holds.
+     *
+     * @param connection
+     * @return The index, or null if the lookup should query the database.
+     */
+    protected EmbeddedIndex embeddedIndex(Connection connection) {
+        return current(postings, connection) ? postings.index : null;
+    }
+
+    /**
+     * Get the hash filters shared by all instances using this database,
+     * building them if necessary.
+     *
+     * @return The filters, or null if filtering is disabled.
+     * @throws SQLException
+     */
+    private Filters filters() throws SQLException {
+        if (VictimsConfig.dbFilterFpp() <= 0) {
+            return null;
+        }
+        synchronized (FILTERS) {
+            Filters shared = FILTERS.get(getPool());
+            if (shared == null) {
+                shared = new Filters();
+                rebuild(shared);
+                FILTERS.put(getPool(), shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Identifies the state of the database. Any synchronization that changes
+     * records, in this or another process, changes the stamp.
+     *
+     * @return
+     * @throws SQLException
+     */
+    protected long stamp() throws SQLException {
+        Connection connection = getConnection();
+        try {
+            return stamp(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Identifies the state of the database, using the given connection.
+     *
+     * @param connection
+     * @return
+     * @throws SQLException
+     */
+    protected long stamp(Connection connection) throws SQLException {
+        long stamp = lastUpdate.lastModified();
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(Query.RECORD_STAMP);
+            if (rs.next()) {
+                // updated records get new ids
+                stamp = (stamp * 31 + rs.getLong(1)) * 31 + rs.getLong(2);
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return stamp;
+    }
+
+    /**
+     * Rebuild a shared structure from the database. While rebuilding, it is
+     * not used.
+     *
+     * @param shared
+     * @throws SQLException
+     */
+    protected void rebuild(Snapshot shared) throws SQLException {
+        Connection connection = getConnection();
+        try {
+            rebuild(shared, connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Rebuild a shared structure from the database, using the given
+     * connection.
+     *
+     * @param shared
+     * @param connection
+     * @throws SQLException
+     */
+    protected void rebuild(Snapshot shared, Connection connection)
+            throws SQLException {
+        shared.stale = true;
+        try {
+            // taken first, so that changes while building are noticed
+            shared.stamp = stamp(connection);
+            shared.build(this, connection);
+            shared.checked = System.currentTimeMillis();
+            shared.stale = false;
+        } catch (SQLException e) {
+            shared.stamp = -1;
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether a shared structure still reflects the database, which
+     * may have been synchronized by another process. The database is checked
+     * at most every {@link #STAMP_INTERVAL} milliseconds, and the structure
+     * rebuilt by the checking thread if it changed.
+     *
+     * @param shared
+     * @param connection
+     *            The connection the caller holds, or null if it holds none,
+     *            so that checking never waits for a second connection.
+     * @return false if the structure must not be used, and lookups should go
+     *         to the database instead.
+     */
+    protected boolean current(Snapshot shared, Connection connection) {
+        if (shared == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - shared.checked < STAMP_INTERVAL) {
+            return !shared.stale;
+        }
+        synchronized (shared) {
+            if (now - shared.checked < STAMP_INTERVAL) {
+                return !shared.stale;
+            }
+            shared.checked = now;
+        }
+        try {
+            Connection borrowed = connection == null ? getConnection() : null;
+            try {
+                Connection using = borrowed == null ? connection : borrowed;
+                if (shared.stale || stamp(using) != shared.stamp) {
+                    rebuild(shared, using);
+                }
+            } finally {
+                if (borrowed != null) {
+                    borrowed.close();
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            // rebuilt on the next check
+            return false;
+        }
+    }
+
+    /**
+     * Fill new filters from the record hashes and file hashes in the
+     * database, replacing the given filters' current ones once done.
+     *
+     * @param shared
+     * @param connection
+     * @throws SQLException
+     */
+    protected void buildFilters(Filters shared, Connection connection)
+            throws SQLException {
+        double fpp = VictimsConfig.dbFilterFpp();
+        HashFilter records = buildFilter(connection, Query.RECORD_COUNT,
+                Query.ALL_RECORD_HASHES, fpp);
+        HashFilter filehashes = buildFilter(connection, Query.FILEHASH_COUNT,
+                Query.ALL_FILEHASHES, fpp);
+        shared.records = records;
+        shared.filehashes = filehashes;
+    }
+
+    private HashFilter buildFilter(Connection connection, String count,
+            String hashes, double fpp) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(count);
+            long expected = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            HashFilter filter = new HashFilter(expected, fpp);
+            rs = stmt.executeQuery(hashes);
+            while (rs.next()) {
+                byte[] hash = rs.getBytes(1);
+                if (hash != null) {
+                    filter.add(hash);
+                }
+            }
+            rs.close();
+            return filter;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Can a record with the given binary hash be in the database.
+     *
+     * @param hash
+     * @return false if it is definitely not.
+     */
+    protected boolean mightContainRecord(byte[] hash) {
+        return mightContainRecord(hash, null);
+    }
+
+    /**
+     * Can a record with the given binary hash be in the database, checking
+     * the filters with the connection the caller holds.
+     *
+     * @param hash
+     * @param connection
+     * @return false if it is definitely not.
+     */
+    protected boolean mightContainRecord(byte[] hash, Connection connection) {
+        return hash != null
+                && (!current(filters, connection) || filters.records
+                        .mightContain(hash));
+    }
+
+    /**
+     * Can a file hash with the given binary hash be in the database.
+     *
+     * @param hash
+     * @return false if it is definitely not.
+     */
+    protected boolean mightContainFileHash(byte[] hash) {
+        return mightContainFileHash(hash, null);
+    }
+
+    /**
+     * Can a file hash with the given binary hash be in the database, checking
+     * the filters with the connection the caller holds.
+     *
+     * @param hash
+     * @param connection
+     * @return false if it is definitely not.
+     */
+    protected boolean mightContainFileHash(byte[] hash, Connection connection) {
+        return hash != null
+                && (!current(filters, connection) || filters.filehashes
+                        .mightContain(hash));
+    }
+
+    /**
+     * The filter over record hashes, short-circuiting lookups of hashes not
+     * in the database.
+     *
+     * @return The filter, or null if filtering is disabled.
+     */
+    public HashFilter getRecordFilter() {
+        return filters == null ? null : filters.records;
+    }
+
+    /**
+     * The filter over file hashes, short-circuiting embedded lookups.
+     *
+     * @return The filter, or null if filtering is disabled.
+     */
+    public HashFilter getFileHashFilter() {
+        return filters == null ? null : filters.filehashes;
     }
 
     /**
@@ -92,8 +418,14 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
         PreparedStatement ps = statement(connection, Query.DELETE_RECORD_HASH);
         while (recordStream.hasNext()) {
             VictimsRecord vr = recordStream.getNext();
-            setObjects(ps, vr.hash);
-            ps.addBatch();
+            byte[] hash = binary(vr.hash);
+            if (hash != null) {
+                setObjects(ps, hash);
+                ps.addBatch();
+            } else {
+                LOG.warning("Not removing record without a SHA-512 hash: "
+                        + vr.hash);
+            }
             count++;
         }
         executeBatchAndClose(ps);
@@ -103,7 +435,8 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
     /**
      * Update all records in the given {@link RecordStream}. This will remove
      * the record if it already exits and then add it. Otherwise, it just adds
-     * it.
+     * it. Records are staged and written in batches of
+     * {@link VictimsConfig#dbSyncBatch()}.
      *
      * @param recordStream
      * @throws SQLException
@@ -112,43 +445,112 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
     protected int update(Connection connection, RecordStream recordStream)
             throws SQLException, IOException {
         int count = 0;
-        PreparedStatement insertFileHash = statement(connection,
-                Query.INSERT_FILEHASH);
-        PreparedStatement insertMeta = statement(connection, Query.INSERT_META);
-        PreparedStatement insertCVE = statement(connection, Query.INSERT_CVES);
+        int batch = VictimsConfig.dbSyncBatch();
+        LinkedHashMap<String, Staged> staged = new LinkedHashMap<String, Staged>();
         while (recordStream.hasNext()) {
             VictimsRecord vr = recordStream.getNext();
-            String hash = vr.hash.trim();
+            byte[] hash = binary(vr.hash);
+            if (hash == null) {
+                // not a sha512 hash, so could never be matched
+                LOG.warning("Dropping record without a SHA-512 hash: "
+                        + vr.hash);
+                continue;
+            }
 
-            // remove if already present
-            deleteRecord(connection, hash);
+            // a later update of the same record replaces an earlier one
+            String key = Hex.encodeHexString(hash);
+            staged.remove(key);
+            staged.put(key, new Staged(hash, vr));
+            count++;
 
-            // add the new/updated hash
-            int id = insertRecord(connection, hash);
+            if (staged.size() >= batch) {
+                update(connection, staged.values());
+                staged.clear();
+            }
+        }
+        if (!staged.isEmpty()) {
+            update(connection, staged.values());
+        }
+        return count;
+    }
+
+    /**
+     * Replace a batch of staged records. Existing copies are deleted with one
+     * statement per table, the records are inserted as a batch, their new ids
+     * resolved with a single query and their contents inserted as batches.
+     *
+     * @param connection
+     * @param records
+     *            Records with distinct hashes.
+     * @throws SQLException
+     */
+    protected void update(Connection connection, Collection<Staged> records)
+            throws SQLException {
+        Object[] hashes = new Object[records.size()];
+        int i = 0;
+        for (Staged record : records) {
+            hashes[i++] = record.hash;
+        }
+
+        // remove if already present
+        String[] queries = new String[] { Query.DELETE_FILEHASHES_IN,
+                Query.DELETE_METAS_IN, Query.DELETE_CVES_IN,
+                Query.DELETE_RECORDS_IN };
+        for (String query : queries) {
+            PreparedStatement ps = setObjects(connection, query,
+                    (Object) hashes);
+            ps.execute();
+            ps.close();
+        }
+
+        // add the new/updated hashes
+        PreparedStatement insertRecord = statement(connection,
+                Query.INSERT_RECORD);
+        for (Staged record : records) {
+            setObjects(insertRecord, record.hash, record.filehashes.size());
+            insertRecord.addBatch();
+        }
+        executeBatchAndClose(insertRecord);
+
+        HashMap<String, Long> ids = new HashMap<String, Long>();
+        PreparedStatement ps = setObjects(connection, Query.RECORD_IDS_IN,
+                (Object) hashes);
+        try {
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ids.put(Hex.encodeHexString(rs.getBytes(1)), rs.getLong(2));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+
+        PreparedStatement insertFileHash = statement(connection,
+                Query.INSERT_FILEHASH);
+        PreparedStatement insertMeta = statement(connection, Query.INSERT_META);
+        PreparedStatement insertCVE = statement(connection, Query.INSERT_CVES);
+        for (Staged record : records) {
+            Long id = ids.get(Hex.encodeHexString(record.hash));
 
             // insert file hahes
-            for (String filehash : vr.getHashes(Algorithms.SHA512).keySet()) {
-                setObjects(insertFileHash, id, filehash.trim());
+            for (byte[] filehash : record.filehashes) {
+                setObjects(insertFileHash, id, filehash);
                 insertFileHash.addBatch();
             }
 
             // insert metadata key-value pairs
-            HashMap<String, String> md = vr.getFlattenedMetaData();
-            for (String key : md.keySet()) {
-                setObjects(insertMeta, id, key, md.get(key));
+            for (String key : record.meta.keySet()) {
+                setObjects(insertMeta, id, key, record.meta.get(key));
                 insertMeta.addBatch();
             }
 
             // insert cves
-            for (String cve : vr.cves) {
+            for (String cve : record.cves) {
                 setObjects(insertCVE, id, cve.trim());
                 insertCVE.addBatch();
             }
-
-            count++;
         }
         executeBatchAndClose(insertFileHash, insertMeta, insertCVE);
-        return count;
     }
 
     /**
@@ -203,6 +605,7 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
             Connection connection = getConnection();
             connection.setAutoCommit(false);
             Savepoint savepoint = connection.setSavepoint();
+            boolean changed = false;
 
             try {
                 VictimsService service = new VictimsService();
@@ -213,6 +616,7 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
 
                 if (removed > 0 || updated > 0) {
                     cache.purge();
+                    changed = true;
                 }
 
                 setLastUpdate(new Date());
@@ -228,6 +632,13 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
                 connection.commit();
                 connection.close();
             }
+            if (changed && throwable == null && filters != null) {
+                rebuild(filters);
+            }
+            if (changed && throwable == null && postings != null
+                    && postings.index != null) {
+                rebuild(postings);
+            }
         } catch (SQLException e) {
             throwable = e;
         }
@@ -246,18 +657,36 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
      */
     protected HashSet<String> getVulnerabilities(int recordId)
             throws SQLException {
-        HashSet<String> cves = new HashSet<String>();
         Connection connection = getConnection();
         try {
-            PreparedStatement ps = setObjects(connection, Query.FIND_CVES,
-                    recordId);
+            return getVulnerabilities(connection, recordId);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns CVEs that are ascociated with a given record id, using the
+     * given connection.
+     *
+     * @param connection
+     * @param recordId
+     * @return
+     * @throws SQLException
+     */
+    protected HashSet<String> getVulnerabilities(Connection connection,
+            int recordId) throws SQLException {
+        HashSet<String> cves = new HashSet<String>();
+        PreparedStatement ps = setObjects(connection, Query.FIND_CVES,
+                recordId);
+        try {
             ResultSet matches = ps.executeQuery();
             while (matches.next()) {
                 cves.add(matches.getString(1));
             }
             matches.close();
         } finally {
-            connection.close();
+            ps.close();
         }
         return cves;
     }
@@ -265,11 +694,19 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
     public HashSet<String> getVulnerabilities(String sha512)
             throws VictimsException {
         try {
+            if (!mightContainRecord(binary(sha512))) {
+                return new HashSet<String>();
+            }
             if (cache.exists(sha512)) {
                 return cache.get(sha512);
             }
-            int id = selectRecordId(sha512);
-            return getVulnerabilities(id);
+            Connection connection = getConnection();
+            try {
+                int id = selectRecordId(connection, sha512);
+                return getVulnerabilities(connection, id);
+            } finally {
+                connection.close();
+            }
         } catch (Throwable e) {
             throw new VictimsException("Failed to get vulnerabilities for "
                     + sha512, e);
@@ -294,7 +731,7 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
                     Integer id = rs.getInt("record");
                     Integer count = rs.getInt("count");
                     if (count == requiredMinCount) {
-                        cves.addAll(getVulnerabilities(id));
+                        cves.addAll(getVulnerabilities(connection, id));
                     }
                 }
                 rs.close();
@@ -319,10 +756,45 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
      */
     protected HashSet<Integer> getEmbeddedRecords(Set<String> hashes)
             throws SQLException {
-        HashSet<Integer> results = new HashSet<Integer>();
         Connection connection = getConnection();
+        try {
+            return getEmbeddedRecords(connection, hashes);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Fetch record id's from the local database that is composed entirely of
+     * hashes in the set of hashes provided, using the given connection.
+     *
+     * @param connection
+     * @param hashes
+     * @return A set record ids
+     * @throws SQLException
+     */
+    protected HashSet<Integer> getEmbeddedRecords(Connection connection,
+            Set<String> hashes) throws SQLException {
+        HashSet<Integer> results = new HashSet<Integer>();
+        ArrayList<byte[]> filehashes = new ArrayList<byte[]>(hashes.size());
+        for (String hash : hashes) {
+            byte[] bytes = binary(hash);
+            if (mightContainFileHash(bytes, connection)) {
+                filehashes.add(bytes);
+            }
+        }
+        if (filehashes.isEmpty()) {
+            return results;
+        }
+        EmbeddedIndex index = embeddedIndex(connection);
+        if (index != null) {
+            for (Long id : index.embedded(filehashes)) {
+                results.add(id.intValue());
+            }
+            return results;
+        }
         PreparedStatement ps = setObjects(connection,
-                Query.FILEHASH_EMBEDDED_MATCH, (Object) hashes.toArray());
+                Query.FILEHASH_EMBEDDED_MATCH, (Object) filehashes.toArray());
         try {
             ResultSet resultSet = ps.executeQuery();
             while (resultSet.next()) {
@@ -330,7 +802,7 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
             }
             resultSet.close();
         } finally {
-            connection.close();
+            ps.close();
         }
         return results;
     }
@@ -346,6 +818,25 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
      */
     protected HashSet<String> getEmbeddedVulnerabilities(VictimsRecord vr)
             throws SQLException {
+        Connection connection = getConnection();
+        try {
+            return getEmbeddedVulnerabilities(connection, vr);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Search for vulnerabilities of records embedded in the given
+     * {@link VictimsRecord}, using the given connection.
+     *
+     * @param connection
+     * @param vr
+     * @return
+     * @throws SQLException
+     */
+    protected HashSet<String> getEmbeddedVulnerabilities(
+            Connection connection, VictimsRecord vr) throws SQLException {
         HashSet<String> cves = new HashSet<String>();
 
         Set<String> hashes = vr.getHashes(Algorithms.SHA512).keySet();
@@ -353,8 +844,8 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
             return cves;
         }
 
-        for (Integer id : getEmbeddedRecords(hashes)) {
-            cves.addAll(getVulnerabilities(id));
+        for (Integer id : getEmbeddedRecords(connection, hashes)) {
+            cves.addAll(getVulnerabilities(connection, id));
         }
 
         return cves;
@@ -363,14 +854,31 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
     public HashSet<String> getVulnerabilities(VictimsRecord vr)
             throws VictimsException {
         try {
+            boolean direct = mightContainRecord(binary(vr.hash));
+            if (!direct && !mightEmbed(vr)) {
+                return new HashSet<String>();
+            }
             if (cache.exists(vr.hash)) {
                 return cache.get(vr.hash);
             }
             HashSet<String> cves = new HashSet<String>();
-            // Match jar sha512
-            cves.addAll(getVulnerabilities(vr.hash.trim()));
-            // Match any embedded filehashes
-            cves.addAll(getEmbeddedVulnerabilities(vr));
+            Connection connection = getConnection();
+            try {
+                // Match jar sha512
+                String sha512 = vr.hash.trim();
+                if (!direct) {
+                    // definitely not a record
+                } else if (cache.exists(sha512)) {
+                    cves.addAll(cache.get(sha512));
+                } else {
+                    cves.addAll(getVulnerabilities(connection,
+                            selectRecordId(connection, sha512)));
+                }
+                // Match any embedded filehashes
+                cves.addAll(getEmbeddedVulnerabilities(connection, vr));
+            } finally {
+                connection.close();
+            }
             cache.add(vr.hash, cves);
             return cves;
         } catch (Throwable e) {
@@ -380,6 +888,306 @@ public class VictimsSqlDB extends VictimsSQL implements VictimsDBInterface {
         }
     }
 
+    /**
+     * Find the CVEs of the records with the given hashes, in one query.
+     *
+     * @param connection
+     * @param hashes
+     * @return A map from each of the given hashes to its CVEs.
+     * @throws SQLException
+     */
+    protected HashMap<String, HashSet<String>> getRecordVulnerabilities(
+            Connection connection, Collection<String> hashes)
+            throws SQLException {
+        HashMap<String, HashSet<String>> results = new HashMap<String, HashSet<String>>();
+        ArrayList<String> lookup = new ArrayList<String>(hashes.size());
+        ArrayList<Object> inputs = new ArrayList<Object>(hashes.size());
+        ArrayList<Object> binaries = new ArrayList<Object>(hashes.size());
+        for (String hash : hashes) {
+            results.put(hash, new HashSet<String>());
+            byte[] bytes = binary(hash);
+            if (mightContainRecord(bytes, connection)) {
+                inputs.add(lookup.size());
+                binaries.add(bytes);
+                lookup.add(hash);
+            }
+        }
+        if (lookup.isEmpty()) {
+            return results;
+        }
+        PreparedStatement ps = setObjects(connection, Query.FIND_RECORD_CVES,
+                inputs.toArray(), binaries.toArray());
+        try {
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                results.get(lookup.get(rs.getInt(1))).add(rs.getString(2));
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return results;
+    }
+
+    /**
+     * For each of the given {@link VictimsRecord}s, find the CVEs of records
+     * in the database composed entirely of hashes in its file hashes, using a
+     * fixed number of queries.
+     *
+     * @param connection
+     * @param vrs
+     * @return The CVEs found, by position in the given list.
+     * @throws SQLException
+     */
+    protected ArrayList<HashSet<String>> getEmbeddedVulnerabilities(
+            Connection connection, ArrayList<VictimsRecord> vrs)
+            throws SQLException {
+        ArrayList<HashSet<String>> results = new ArrayList<HashSet<String>>(
+                vrs.size());
+        ArrayList<Object> inputs = new ArrayList<Object>();
+        ArrayList<Object> filehashes = new ArrayList<Object>();
+        for (int i = 0; i < vrs.size(); i++) {
+            results.add(new HashSet<String>());
+            for (String filehash : vrs.get(i).getHashes(Algorithms.SHA512)
+                    .keySet()) {
+                byte[] bytes = binary(filehash);
+                if (mightContainFileHash(bytes, connection)) {
+                    inputs.add(i);
+                    filehashes.add(bytes);
+                }
+            }
+        }
+        if (filehashes.isEmpty()) {
+            return results;
+        }
+
+        // which records are embedded in which input
+        HashMap<Long, ArrayList<Integer>> embedded = new HashMap<Long, ArrayList<Integer>>();
+        EmbeddedIndex index = embeddedIndex(connection);
+        if (index != null) {
+            int start = 0;
+            while (start < inputs.size()) {
+                Integer input = (Integer) inputs.get(start);
+                int end = start;
+                ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+                while (end < inputs.size() && inputs.get(end).equals(input)) {
+                    hashes.add((byte[]) filehashes.get(end));
+                    end++;
+                }
+                for (Long record : index.embedded(hashes)) {
+                    addInput(embedded, record, input);
+                }
+                start = end;
+            }
+        } else {
+            PreparedStatement ps = setObjects(connection,
+                    Query.FILEHASH_EMBEDDED_MATCHES, inputs.toArray(),
+                    filehashes.toArray());
+            try {
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    addInput(embedded, rs.getLong("record"),
+                            rs.getInt("input"));
+                }
+                rs.close();
+            } finally {
+                ps.close();
+            }
+        }
+        if (embedded.isEmpty()) {
+            return results;
+        }
+
+        PreparedStatement ps = setObjects(connection, Query.FIND_CVES_IN, (Object) embedded
+                .keySet().toArray());
+        try {
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                String cve = rs.getString("cve");
+                for (Integer input : embedded.get(rs.getLong("record"))) {
+                    results.get(input).add(cve);
+                }
+            }
+            rs.close();
+        } finally {
+            ps.close();
+        }
+        return results;
+    }
+
+    private static void addInput(HashMap<Long, ArrayList<Integer>> embedded,
+            Long record, Integer input) {
+        ArrayList<Integer> in = embedded.get(record);
+        if (in == null) {
+            in = new ArrayList<Integer>();
+            embedded.put(record, in);
+        }
+        in.add(input);
+    }
+
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Collection<VictimsRecord> vrs) throws VictimsException {
+        try {
+            HashMap<String, HashSet<String>> results = new HashMap<String, HashSet<String>>();
+            ArrayList<VictimsRecord> lookup = new ArrayList<VictimsRecord>();
+            HashSet<String> hashes = new HashSet<String>();
+            for (VictimsRecord vr : vrs) {
+                if (results.containsKey(vr.hash)) {
+                    continue;
+                }
+                if (cache.exists(vr.hash)) {
+                    results.put(vr.hash, cache.get(vr.hash));
+                } else if (hashes.add(vr.hash)) {
+                    lookup.add(vr);
+                }
+            }
+            if (lookup.isEmpty()) {
+                return results;
+            }
+
+            Connection connection = getConnection();
+            try {
+                HashSet<String> trimmed = new HashSet<String>();
+                for (VictimsRecord vr : lookup) {
+                    trimmed.add(vr.hash.trim());
+                }
+                // Match jar sha512
+                HashMap<String, HashSet<String>> direct = getRecordVulnerabilities(
+                        connection, trimmed);
+                // Match any embedded filehashes
+                ArrayList<HashSet<String>> embedded = getEmbeddedVulnerabilities(
+                        connection, lookup);
+                for (int i = 0; i < lookup.size(); i++) {
+                    VictimsRecord vr = lookup.get(i);
+                    HashSet<String> cves = embedded.get(i);
+                    cves.addAll(direct.get(vr.hash.trim()));
+                    cache.add(vr.hash, cves);
+                    results.put(vr.hash, cves);
+                }
+            } finally {
+                connection.close();
+            }
+            return results;
+        } catch (Throwable e) {
+            throw new VictimsException(
+                    "Could not determine vulnerabilities for records", e);
+        }
+    }
+
+    public HashMap<String, HashSet<String>> getVulnerabilities(
+            Set<String> sha512s) throws VictimsException {
+        try {
+            HashMap<String, HashSet<String>> results = new HashMap<String, HashSet<String>>();
+            ArrayList<String> lookup = new ArrayList<String>();
+            for (String sha512 : sha512s) {
+                if (cache.exists(sha512)) {
+                    results.put(sha512, cache.get(sha512));
+                } else {
+                    lookup.add(sha512);
+                }
+            }
+            if (lookup.isEmpty()) {
+                return results;
+            }
+            Connection connection = getConnection();
+            try {
+                results.putAll(getRecordVulnerabilities(connection, lookup));
+            } finally {
+                connection.close();
+            }
+            return results;
+        } catch (Throwable e) {
+            throw new VictimsException(
+                    "Failed to get vulnerabilities for hashes", e);
+        }
+    }
+
+    /**
+     * Can any of the file hashes of a {@link VictimsRecord} be in the
+     * database, and so a record embedded in it.
+     *
+     * @param vr
+     * @return false if none can.
+     */
+    protected boolean mightEmbed(VictimsRecord vr) {
+        for (String filehash : vr.getHashes(Algorithms.SHA512).keySet()) {
+            if (mightContainFileHash(binary(filehash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A record read from the server, waiting to be written to the database.
+     */
+    protected static class Staged {
+        final byte[] hash;
+        final ArrayList<byte[]> filehashes = new ArrayList<byte[]>();
+        final HashMap<String, String> meta;
+        final ArrayList<String> cves;
+
+        Staged(byte[] hash, VictimsRecord vr) {
+            this.hash = hash;
+            // only valid file hashes are stored and counted
+            int dropped = 0;
+            for (String filehash : vr.getHashes(Algorithms.SHA512).keySet()) {
+                byte[] bytes = binary(filehash);
+                if (bytes != null) {
+                    filehashes.add(bytes);
+                } else {
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                LOG.warning(String.format("Dropping %d file hashes of record "
+                        + "%s that are not SHA-512 hashes", dropped, vr.hash));
+            }
+            this.meta = vr.getFlattenedMetaData();
+            this.cves = vr.cves;
+        }
+    }
+
+    /**
+     * An in-memory structure built from a database and shared by all
+     * instances using it, with the state of the database it was built from.
+     */
+    protected abstract static class Snapshot {
+        volatile long stamp = -1;
+        volatile long checked = 0;
+        volatile boolean stale = true;
+
+        abstract void build(VictimsSqlDB db, Connection connection)
+                throws SQLException;
+    }
+
+    /**
+     * The current filters of a database, replaced as a whole when rebuilt.
+     */
+    protected static class Filters extends Snapshot {
+        volatile HashFilter records;
+        volatile HashFilter filehashes;
+
+        @Override
+        void build(VictimsSqlDB db, Connection connection)
+                throws SQLException {
+            db.buildFilters(this, connection);
+        }
+    }
+
+    /**
+     * The current inverted index of a database, replaced when rebuilt.
+     */
+    protected static class Postings extends Snapshot {
+        volatile EmbeddedIndex index;
+
+        @Override
+        void build(VictimsSqlDB db, Connection connection)
+                throws SQLException {
+            db.buildPostings(this, connection);
+        }
+    }
+
     public int getRecordCount() throws VictimsException {
 
         int count = 0;
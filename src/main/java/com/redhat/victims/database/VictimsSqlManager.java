@@ -0,0 +1,590 @@
+package com.redhat.victims.database;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.redhat.victims.VictimsConfig;
+
+/**
+ * A bounded pool of JDBC connections to one database. Connections handed out
+ * are returned to the pool, rather than closed, when closed by the caller.
+ * Idle connections are validated before reuse and closed once idle for
+ * longer than the configured timeout.
+ * 
+ * Each pooled connection keeps the statements prepared from it, by SQL, so
+ * that queries run repeatedly are only parsed and planned once. Closing such
+ * a statement returns it to the connection's cache.
+ * 
+ * @author abn
+ * 
+ */
+public class VictimsSqlManager {
+    /**
+     * How long to wait for a connection before failing, in seconds.
+     */
+    private static final int WAIT = 60;
+    /**
+     * Idle connections are validated with a round trip only when idle for
+     * longer than this many milliseconds.
+     */
+    private static final long VALIDATE_AFTER = 5000;
+    private static final int VALIDATE_TIMEOUT = 5;
+    private static final HashMap<String, VictimsSqlManager> POOLS = new HashMap<String, VictimsSqlManager>();
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPass;
+    private final int size;
+    private final long idleTimeout;
+    private final int statementCache;
+    private final Semaphore permits;
+    private final LinkedList<Pooled> idle = new LinkedList<Pooled>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * 
+     * @param dbUrl
+     *            The connection string without username and password.
+     * @param dbUser
+     * @param dbPass
+     * @param size
+     *            The maximum number of connections open at once.
+     * @param idleTimeout
+     *            How long, in milliseconds, a connection may be idle before
+     *            it is closed.
+     * @param statements
+     *            The maximum number of prepared statements cached per
+     *            connection. If 0, statements are not cached.
+     */
+    public VictimsSqlManager(String dbUrl, String dbUser, String dbPass,
+            int size, long idleTimeout, int statements) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPass = dbPass;
+        this.size = Math.max(1, size);
+        this.idleTimeout = idleTimeout;
+        this.statementCache = Math.max(0, statements);
+        this.permits = new Semaphore(this.size, true);
+    }
+
+    /**
+     * Create a pool caching the configured number of statements per
+     * connection.
+     * 
+     * @param dbUrl
+     * @param dbUser
+     * @param dbPass
+     * @param size
+     * @param idleTimeout
+     */
+    public VictimsSqlManager(String dbUrl, String dbUser, String dbPass,
+            int size, long idleTimeout) {
+        this(dbUrl, dbUser, dbPass, size, idleTimeout, VictimsConfig
+                .dbStatementCache());
+    }
+
+    /**
+     * Get the pool shared by all users of a database, creating it with the
+     * configured size and idle timeout if necessary.
+     * 
+     * @param dbUrl
+     * @param dbUser
+     * @param dbPass
+     * @return
+     */
+    public static VictimsSqlManager pool(String dbUrl, String dbUser,
+            String dbPass) {
+        String key = dbUser + "@" + dbUrl;
+        synchronized (POOLS) {
+            VictimsSqlManager pool = POOLS.get(key);
+            if (pool == null) {
+                pool = new VictimsSqlManager(dbUrl, dbUser, dbPass,
+                        VictimsConfig.dbPoolSize(),
+                        VictimsConfig.dbPoolIdle());
+                POOLS.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Close the idle connections of all shared pools.
+     */
+    public static void closeAll() {
+        synchronized (POOLS) {
+            for (VictimsSqlManager pool : POOLS.values()) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Borrow a connection, waiting if all connections are in use. Closing the
+     * connection returns it to the pool, along with closing any statements
+     * created from it.
+     * 
+     * @return
+     * @throws SQLException
+     */
+    public Connection getConnection() throws SQLException {
+        try {
+            if (!permits.tryAcquire(WAIT, TimeUnit.SECONDS)) {
+                throw new SQLException(String.format(
+                        "Timed out waiting for a connection to %s", dbUrl));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection");
+        }
+        try {
+            Pooled pooled = reuse();
+            if (pooled == null) {
+                pooled = new Pooled(DriverManager.getConnection(dbUrl, dbUser,
+                        dbPass));
+                created.incrementAndGet();
+            }
+            borrowed.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new Borrowed(pooled));
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Take the most recently used idle connection that is still valid.
+     */
+    private Pooled reuse() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Pooled candidate;
+            synchronized (idle) {
+                evict(now);
+                candidate = idle.pollFirst();
+            }
+            if (candidate == null) {
+                return null;
+            }
+            if (isValid(candidate, now)) {
+                return candidate;
+            }
+            invalid.incrementAndGet();
+            closeQuietly(candidate.connection);
+        }
+    }
+
+    private boolean isValid(Pooled candidate, long now) {
+        try {
+            if (candidate.connection.isClosed()) {
+                return false;
+            }
+            if (now - candidate.since < VALIDATE_AFTER) {
+                return true;
+            }
+            return candidate.connection.isValid(VALIDATE_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        } catch (AbstractMethodError e) {
+            // pre JDBC 4 driver, trust that it is open
+            return true;
+        }
+    }
+
+    /**
+     * Close connections idle for too long. Callers hold the idle lock.
+     */
+    private void evict(long now) {
+        while (!idle.isEmpty() && now - idle.getLast().since > idleTimeout) {
+            closeQuietly(idle.removeLast().connection);
+            evicted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Return a borrowed connection, resetting any transaction left open.
+     */
+    private void release(Pooled pooled) {
+        Connection connection = pooled.connection;
+        try {
+            boolean reusable = !connection.isClosed();
+            if (reusable && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (reusable) {
+                connection.clearWarnings();
+                long now = System.currentTimeMillis();
+                synchronized (idle) {
+                    pooled.since = now;
+                    idle.addFirst(pooled);
+                    evict(now);
+                }
+            }
+        } catch (SQLException e) {
+            invalid.incrementAndGet();
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // already unusable
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the connection is validated on release
+        }
+    }
+
+    /**
+     * Close all idle connections. Borrowed connections are unaffected and
+     * the pool remains usable.
+     */
+    public void close() {
+        synchronized (idle) {
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.removeFirst().connection);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return The maximum number of connections open at once.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 
+     * @return The number of connections currently borrowed.
+     */
+    public int getActive() {
+        return size - permits.availablePermits();
+    }
+
+    /**
+     * 
+     * @return The number of open connections waiting to be reused.
+     */
+    public int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * 
+     * @return The number of connections opened by this pool.
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /**
+     * 
+     * @return The number of times a connection was handed out.
+     */
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    /**
+     * 
+     * @return The number of connections discarded as no longer usable.
+     */
+    public long getInvalid() {
+        return invalid.get();
+    }
+
+    /**
+     * 
+     * @return The number of connections closed after being idle too long.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * 
+     * @return The number of statements prepared on pooled connections.
+     */
+    public long getPrepared() {
+        return prepared.get();
+    }
+
+    /**
+     * 
+     * @return The number of times a cached statement was reused instead of
+     *         prepared.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: size=%d active=%d idle=%d created=%d borrowed=%d "
+                        + "invalid=%d evicted=%d prepared=%d reused=%d",
+                dbUrl, size, getActive(), getIdle(), getCreated(),
+                getBorrowed(), getInvalid(), getEvicted(), getPrepared(),
+                getReused());
+    }
+
+    /**
+     * A pooled connection, its statement cache and when it was last
+     * returned. Only used by one borrower at a time.
+     */
+    private class Pooled {
+        final Connection connection;
+        final LinkedHashMap<String, Cached> cache;
+        long since;
+
+        Pooled(Connection connection) {
+            this.connection = connection;
+            this.cache = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+        }
+
+        /**
+         * Get a prepared statement for the given SQL, from the cache if it
+         * is not in use already.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            Cached cached = cache.get(sql);
+            if (cached != null && !cached.inUse) {
+                cached.statement.clearParameters();
+                cached.inUse = true;
+                reused.incrementAndGet();
+                return cached.proxy;
+            }
+            PreparedStatement statement = connection.prepareStatement(sql);
+            prepared.incrementAndGet();
+            if (cached != null) {
+                // nested use of the same query
+                return statement;
+            }
+            cached = new Cached(statement);
+            cached.inUse = true;
+            cache.put(sql, cached);
+            trim();
+            return cached.proxy;
+        }
+
+        /**
+         * Close the least recently used statements not in use beyond the
+         * cache size.
+         */
+        private void trim() {
+            Iterator<Cached> iterator = cache.values().iterator();
+            while (cache.size() > statementCache && iterator.hasNext()) {
+                Cached eldest = iterator.next();
+                if (!eldest.inUse) {
+                    iterator.remove();
+                    closeQuietly(eldest.statement);
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached statement. Closing the proxy handed out closes its results
+     * and returns the statement to the cache.
+     */
+    private static class Cached implements InvocationHandler {
+        final PreparedStatement statement;
+        final PreparedStatement proxy;
+        final ArrayList<ResultSet> results = new ArrayList<ResultSet>();
+        boolean inUse = false;
+
+        Cached(PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                giveBack();
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return !inUse || statement.isClosed();
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "Cached " + statement;
+            }
+            if (!inUse) {
+                throw new SQLException("Statement is closed");
+            }
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                results.add((ResultSet) result);
+            }
+            return result;
+        }
+
+        void giveBack() {
+            if (!inUse) {
+                return;
+            }
+            for (ResultSet rs : results) {
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    // the statement is still usable
+                }
+            }
+            results.clear();
+            try {
+                statement.clearBatch();
+            } catch (SQLException e) {
+                // cleared when next executed
+            }
+            inUse = false;
+        }
+    }
+
+    /**
+     * Hands calls on a borrowed connection to the pooled one, until closed.
+     */
+    private class Borrowed implements InvocationHandler {
+        private Pooled pooled;
+        private final ArrayList<Statement> statements = new ArrayList<Statement>();
+
+        Borrowed(Pooled pooled) {
+            this.pooled = pooled;
+        }
+
+        public synchronized Object invoke(Object proxy, Method method,
+                Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                close();
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return pooled == null || pooled.connection.isClosed();
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "Pooled "
+                        + (pooled == null ? "closed" : pooled.connection);
+            }
+            if (pooled == null) {
+                throw new SQLException("Connection is closed");
+            }
+            Object result;
+            boolean prepare = name.equals("prepareStatement")
+                    && args.length == 1;
+            if (prepare && statementCache > 0) {
+                result = pooled.prepare((String) args[0]);
+            } else {
+                if (prepare) {
+                    prepared.incrementAndGet();
+                }
+                try {
+                    result = method.invoke(pooled.connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            if (result instanceof Statement) {
+                statements.add((Statement) result);
+            }
+            return result;
+        }
+
+        private void close() {
+            if (pooled == null) {
+                return;
+            }
+            for (Statement statement : statements) {
+                // cached statements are returned to the cache
+                closeQuietly(statement);
+            }
+            statements.clear();
+            Pooled returned = pooled;
+            pooled = null;
+            returned.trim();
+            release(returned);
+        }
+    }
+}
@@ -21,7 +21,6 @@ package com.redhat.victims.fingerprint;
  * #L%
  */
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -39,6 +38,12 @@ import com.redhat.victims.VictimsConfig;
  * @author gcmurphy
  */
 public class ClassFile extends File {
+    /**
+     * The version of the normalized form fingerprinted. Any change to the
+     * normalization that changes the resulting fingerprints must increment
+     * it, so that fingerprints persisted by earlier versions are discarded.
+     */
+    public static final int NORMALIZER_VERSION = 1;
 
     /**
      * 
@@ -49,7 +54,8 @@ public class ClassFile extends File {
      * @throws IOException
      */
     public ClassFile(byte[] bytes, String fileName) throws IOException {
-        super(ClassFile.normalize(bytes, fileName), fileName);
+        this.fileName = fileName;
+        this.fingerprint = ClassFile.fingerprint(bytes, fileName);
     }
 
     /**
@@ -128,6 +134,29 @@ public class ClassFile extends File {
         return "";
     }
 
+    /**
+     * Resolves a constants value, remembering it in the given table for later
+     * lookups of the same index.
+     * 
+     * @param index
+     * @param cp
+     * @param resolved
+     *            Values already resolved, indexed as the constant pool.
+     * @return
+     */
+    private static String constantValue(int index, ConstantPool cp,
+            String[] resolved) {
+        if (index < 0 || index >= resolved.length) {
+            return constantValue(index, cp);
+        }
+        String value = resolved[index];
+        if (value == null) {
+            value = constantValue(index, cp);
+            resolved[index] = value;
+        }
+        return value;
+    }
+
     /**
      * Normalizes the bytecode using the supplied constant pool. Essentially all
      * lookups via index to the constant pool are resolved and inserted in place
@@ -144,9 +173,25 @@ public class ClassFile extends File {
     public static String formatBytecode(ByteSequence bytes, ConstantPool cp)
             throws IOException {
         StringBuilder buf = new StringBuilder();
+        formatBytecode(bytes, cp, new TokenSink.StringSink(buf));
+        return buf.toString();
+    }
+
+    /**
+     * Normalizes the bytecode using the supplied constant pool, appending the
+     * resulting tokens to the given sink.
+     * 
+     * @param bytes
+     * @param cp
+     * @param buf
+     * @throws IOException
+     */
+    static void formatBytecode(ByteSequence bytes, ConstantPool cp,
+            TokenSink buf) throws IOException {
         int index, rem, pad, def, low, hi, npair;
         short opcode;
         boolean wide = false;
+        String[] resolved = new String[cp.getLength()];
 
         while (bytes.available() > 0) {
             opcode = (short) bytes.readUnsignedByte();
@@ -266,17 +311,17 @@ public class ClassFile extends File {
             case Constants.LDC2_W:
             case Constants.ANEWARRAY:
                 index = bytes.readUnsignedShort();
-                buf.append(constantValue(index, cp));
+                buf.append(constantValue(index, cp, resolved));
                 break;
 
             case Constants.LDC:
                 index = bytes.readUnsignedByte();
-                buf.append(constantValue(index, cp));
+                buf.append(constantValue(index, cp, resolved));
                 break;
 
             case Constants.MULTIANEWARRAY:
                 index = bytes.readUnsignedShort();
-                buf.append(constantValue(index, cp));
+                buf.append(constantValue(index, cp, resolved));
                 buf.append(bytes.readUnsignedByte());
                 break;
 
@@ -293,7 +338,7 @@ public class ClassFile extends File {
 
             case Constants.INVOKEINTERFACE:
                 index = bytes.readUnsignedShort();
-                buf.append(constantValue(index, cp));
+                buf.append(constantValue(index, cp, resolved));
                 buf.append(bytes.readUnsignedByte());
                 buf.append(bytes.readUnsignedByte());
                 break;
@@ -325,8 +370,6 @@ public class ClassFile extends File {
                 }
             }
         }
-
-        return buf.toString();
     }
 
     /**
@@ -341,53 +384,72 @@ public class ClassFile extends File {
      */
     public static byte[] normalize(byte[] bytes, String fileName)
             throws IOException {
-        ByteArrayInputStream is = new ByteArrayInputStream(bytes);
-        ClassParser parser = new ClassParser(is, fileName);
-        StringBuffer buf = new StringBuffer();
-        JavaClass klass = parser.parse();
-        ConstantPool cpool = klass.getConstantPool();
-        // source file
-        buf.append(klass.getSourceFileName());
-        // access flags
-        buf.append(String.valueOf(klass.getAccessFlags()));
-        // this class
-        buf.append(constantValue(klass.getClassNameIndex(), cpool));
-        // super class (extends)
-        buf.append(constantValue(klass.getSuperclassNameIndex(), cpool));
-        // interfaces (implements)
-        for (int index : klass.getInterfaceIndices()) {
-            // implemented interface name
-            buf.append(constantValue(index, cpool));
-        }
-        // fields
-        for (Field f : klass.getFields()) {
-            // access flags
-            buf.append(String.valueOf(f.getAccessFlags()));
-            // name
-            buf.append(constantValue(f.getNameIndex(), cpool));
-            // signature
-            buf.append(constantValue(f.getSignatureIndex(), cpool));
-            // value
-            if (f.getConstantValue() != null) {
-                int index = f.getConstantValue().getConstantValueIndex();
-                buf.append(constantValue(index, klass.getConstantPool()));
-            }
+        StringBuilder buf = new StringBuilder();
+        normalize(bytes, fileName, new TokenSink.StringSink(buf));
+        return buf.toString().getBytes(VictimsConfig.charset());
+    }
+
+    /**
+     * Fingerprint the normalized form of the given byte code. The normalized
+     * tokens are encoded straight into the digests, this is equivalent to
+     * fingerprinting the result of {@link #normalize(byte[], String)}. Classes
+     * seen before are served from the shared {@link FingerprintMemo}.
+     * 
+     * @param bytes
+     *            The input class as a byte array.
+     * @param fileName
+     *            The name of the file.
+     * @return The fingerprint of the normalized bytecode.
+     * @throws IOException
+     */
+    public static Fingerprint fingerprint(byte[] bytes, String fileName)
+            throws IOException {
+        FingerprintMemo memo = FingerprintMemo.shared();
+        if (memo != null) {
+            return memo.fingerprint(bytes, fileName);
         }
-        // methods
-        for (Method m : klass.getMethods()) {
-            // access flags
-            buf.append(String.valueOf(m.getAccessFlags()));
-            // name
-            buf.append(constantValue(m.getNameIndex(), cpool));
-            // signature
-            buf.append(constantValue(m.getSignatureIndex(), cpool));
-            // code
-            Code code = m.getCode();
-            if (code != null) {
-                ByteSequence bytecode = new ByteSequence(code.getCode());
-                buf.append(formatBytecode(bytecode, cpool));
-            }
+        return digest(bytes, fileName);
+    }
+
+    /**
+     * Fingerprint the normalized form of the given byte code, bypassing the
+     * {@link FingerprintMemo}.
+     * 
+     * @param bytes
+     *            The input class as a byte array.
+     * @param fileName
+     *            The name of the file.
+     * @return The fingerprint of the normalized bytecode.
+     * @throws IOException
+     */
+    static Fingerprint digest(byte[] bytes, String fileName)
+            throws IOException {
+        Digester digester = Digester.acquire();
+        try {
+            TokenSink sink = TokenSink.encoding(digester,
+                    VictimsConfig.charset());
+            normalize(bytes, fileName, sink);
+            sink.flush();
+            return digester.fingerprint();
+        } finally {
+            digester.release();
         }
-        return buf.toString().getBytes(VictimsConfig.charset());
+    }
+
+    /**
+     * Normalizes the given byte code, appending the resulting tokens to the
+     * given sink. The class is read in place by a {@link ClassReader}.
+     * 
+     * @param bytes
+     *            The input class as a byte array.
+     * @param fileName
+     *            The name of the file.
+     * @param buf
+     *            The sink for the normalized tokens.
+     * @throws IOException
+     */
+    static void normalize(byte[] bytes, String fileName, TokenSink buf)
+            throws IOException {
+        new ClassReader(bytes).normalize(buf);
     }
 }
@@ -0,0 +1,698 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+import org.apache.bcel.Constants;
+
+/**
+ * A read-only class file reader producing the normalized token stream used for
+ * fingerprinting. The class file is walked in place, only the parts that
+ * contribute to the normalized form are decoded and no object graph is built.
+ * 
+ * The tokens produced are identical to those of
+ * {@link ClassFile#constantValue(int, org.apache.bcel.classfile.ConstantPool)}
+ * and
+ * {@link ClassFile#formatBytecode(org.apache.bcel.util.ByteSequence, org.apache.bcel.classfile.ConstantPool)}
+ * over a BCEL parsed class. In addition, constant pool entries and
+ * instructions introduced after Java 6 (method handles, invokedynamic,
+ * modules) are accepted.
+ * 
+ * @author abn
+ * 
+ */
+final class ClassReader {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int MAX_DEPTH = 8;
+    private static final String UNKNOWN_SOURCE = "<Unknown>";
+
+    // constant pool tags not known to BCEL 5.2
+    static final byte CONSTANT_MethodHandle = 15;
+    static final byte CONSTANT_MethodType = 16;
+    static final byte CONSTANT_Dynamic = 17;
+    static final byte CONSTANT_InvokeDynamic = 18;
+    static final byte CONSTANT_Module = 19;
+    static final byte CONSTANT_Package = 20;
+
+    static final short INVOKEDYNAMIC = 186;
+
+    private static final byte[] CODE = ascii("Code");
+    private static final byte[] CONSTANT_VALUE = ascii("ConstantValue");
+    private static final byte[] SOURCE_FILE = ascii("SourceFile");
+
+    private final byte[] bytes;
+    private int pos;
+    private int limit;
+    private int[] offsets;
+    private String[] resolved;
+
+    /**
+     * 
+     * @param bytes
+     *            The class file.
+     */
+    ClassReader(byte[] bytes) {
+        this.bytes = bytes;
+        this.pos = 0;
+        this.limit = bytes.length;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] result = new byte[value.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) value.charAt(i);
+        }
+        return result;
+    }
+
+    /**
+     * Normalize the class, appending the resulting tokens to the given sink.
+     * 
+     * @param buf
+     * @throws IOException
+     *             If the class file is malformed.
+     */
+    void normalize(TokenSink buf) throws IOException {
+        if (s4() != MAGIC) {
+            throw new IOException("Not a class file, invalid magic number.");
+        }
+        skip(4); // minor, major
+        readConstantPool();
+
+        int access = u2();
+        if ((access & Constants.ACC_INTERFACE) != 0) {
+            access |= Constants.ACC_ABSTRACT;
+        }
+        if ((access & Constants.ACC_ABSTRACT) != 0
+                && (access & Constants.ACC_FINAL) != 0) {
+            throw new IOException("Class can't be both final and abstract");
+        }
+        int thisIndex = u2();
+        int superIndex = u2();
+        className(thisIndex);
+        if (superIndex > 0) {
+            className(superIndex);
+        }
+        int interfaces = pos;
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            className(u2());
+        }
+
+        // the source file is the first token, but the last attribute
+        int members = pos;
+        skipMembers(); // fields
+        skipMembers(); // methods
+        int sourceFile = attribute(SOURCE_FILE, 2);
+
+        // source file
+        buf.append(sourceFile < 0 ? UNKNOWN_SOURCE : utf8(u2(sourceFile)));
+        // access flags
+        buf.append(access);
+        // this class
+        buf.append(constantValue(thisIndex));
+        // super class (extends)
+        buf.append(constantValue(superIndex));
+        // interfaces (implements)
+        pos = interfaces;
+        count = u2();
+        for (int i = 0; i < count; i++) {
+            buf.append(constantValue(u2()));
+        }
+        pos = members;
+        // fields
+        count = u2();
+        for (int i = 0; i < count; i++) {
+            // access flags, name, signature
+            buf.append(u2());
+            buf.append(constantValue(u2()));
+            buf.append(constantValue(u2()));
+            // value
+            int value = attribute(CONSTANT_VALUE, 2);
+            if (value >= 0) {
+                buf.append(constantValue(u2(value)));
+            }
+        }
+        // methods
+        count = u2();
+        for (int i = 0; i < count; i++) {
+            // access flags, name, signature
+            buf.append(u2());
+            buf.append(constantValue(u2()));
+            buf.append(constantValue(u2()));
+            // code
+            int code = attribute(CODE, 8);
+            if (code >= 0) {
+                int end = pos;
+                int length = s4(code + 4);
+                pos = code + 8;
+                limit = pos + length;
+                if (limit < pos || limit > bytes.length) {
+                    throw new EOFException();
+                }
+                formatBytecode(buf);
+                pos = end;
+                limit = bytes.length;
+            }
+        }
+    }
+
+    /**
+     * Record the offset of every constant pool entry. The entries themselves
+     * are only decoded when referenced.
+     * 
+     * @throws IOException
+     */
+    private void readConstantPool() throws IOException {
+        int count = u2();
+        offsets = new int[count];
+        resolved = new String[count];
+        for (int i = 1; i < count; i++) {
+            offsets[i] = pos;
+            byte tag = (byte) u1();
+            switch (tag) {
+            case Constants.CONSTANT_Utf8:
+                skip(u2());
+                break;
+
+            case Constants.CONSTANT_Integer:
+            case Constants.CONSTANT_Float:
+                skip(4);
+                break;
+
+            case Constants.CONSTANT_Long:
+            case Constants.CONSTANT_Double:
+                skip(8);
+                // takes up two entries
+                i++;
+                break;
+
+            case Constants.CONSTANT_Class:
+            case Constants.CONSTANT_String:
+            case CONSTANT_MethodType:
+            case CONSTANT_Module:
+            case CONSTANT_Package:
+                skip(2);
+                break;
+
+            case Constants.CONSTANT_Fieldref:
+            case Constants.CONSTANT_Methodref:
+            case Constants.CONSTANT_InterfaceMethodref:
+            case Constants.CONSTANT_NameAndType:
+            case CONSTANT_Dynamic:
+            case CONSTANT_InvokeDynamic:
+                skip(4);
+                break;
+
+            case CONSTANT_MethodHandle:
+                skip(3);
+                break;
+
+            default:
+                throw new IOException("Invalid byte tag in constant pool: "
+                        + tag);
+            }
+        }
+    }
+
+    /**
+     * Skip over a fields or methods table.
+     * 
+     * @throws IOException
+     */
+    private void skipMembers() throws IOException {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            skip(6);
+            attribute(null, 0);
+        }
+    }
+
+    /**
+     * Read an attributes table, positioning after it.
+     * 
+     * @param name
+     *            The name of the attribute to look for, may be
+     *            <code>null</code>.
+     * @param size
+     *            The minimum length of the attribute looked for.
+     * @return The offset of the first attribute's info with the given name, or
+     *         -1 if there is no such attribute.
+     * @throws IOException
+     */
+    private int attribute(byte[] name, int size) throws IOException {
+        int found = -1;
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            int nameIndex = u2();
+            int length = s4();
+            int offset = entry(nameIndex, Constants.CONSTANT_Utf8);
+            if (found < 0 && name != null && equals(offset, name)) {
+                if (length < size) {
+                    throw new EOFException();
+                }
+                found = pos;
+            }
+            skip(length);
+        }
+        return found;
+    }
+
+    /**
+     * Test if the utf8 constant at the given offset holds the given ascii
+     * name.
+     */
+    private boolean equals(int offset, byte[] name) {
+        if (u2(offset + 1) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[offset + 3 + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves a constants value to the lowest form it can be represented by,
+     * identical to
+     * {@link ClassFile#constantValue(int, org.apache.bcel.classfile.ConstantPool)}
+     * .
+     * 
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    String constantValue(int index) throws IOException {
+        return constantValue(index, 0);
+    }
+
+    /**
+     * Resolved values are remembered, as code refers to the same few constants
+     * over and over.
+     */
+    private String constantValue(int index, int depth) throws IOException {
+        if (index < 0 || index >= offsets.length) {
+            throw new IOException("Invalid constant pool reference: " + index);
+        }
+        String value = resolved[index];
+        if (value == null) {
+            value = resolve(index, depth);
+            resolved[index] = value;
+        }
+        return value;
+    }
+
+    private String resolve(int index, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Circular constant pool reference: " + index);
+        }
+        int offset = offsets[index];
+        if (offset == 0) {
+            return "";
+        }
+        depth++;
+        switch (bytes[offset]) {
+        case Constants.CONSTANT_Class:
+        case CONSTANT_MethodType:
+        case CONSTANT_Module:
+        case CONSTANT_Package:
+            return constantValue(u2(offset + 1), depth);
+
+        case Constants.CONSTANT_Double:
+            return String.valueOf(Double.longBitsToDouble(s8(offset + 1)));
+
+        case Constants.CONSTANT_Fieldref:
+        case Constants.CONSTANT_Methodref:
+        case Constants.CONSTANT_InterfaceMethodref:
+            return constantValue(u2(offset + 1), depth) + " "
+                    + constantValue(u2(offset + 3), depth);
+
+        case Constants.CONSTANT_Float:
+            return String.valueOf(Float.intBitsToFloat(s4(offset + 1)));
+
+        case Constants.CONSTANT_Integer:
+            return String.valueOf(s4(offset + 1));
+
+        case Constants.CONSTANT_Long:
+            return String.valueOf(s8(offset + 1));
+
+        case Constants.CONSTANT_NameAndType:
+            return utf8(u2(offset + 1)) + " " + utf8(u2(offset + 3));
+
+        case Constants.CONSTANT_String:
+            return utf8(u2(offset + 1));
+
+        case Constants.CONSTANT_Utf8:
+            return decode(offset);
+
+        case CONSTANT_MethodHandle:
+            return String.valueOf(bytes[offset + 1] & 0xff) + " "
+                    + constantValue(u2(offset + 2), depth);
+
+        case CONSTANT_Dynamic:
+        case CONSTANT_InvokeDynamic:
+            // the bootstrap method index is not resolved
+            return constantValue(u2(offset + 3), depth);
+        }
+        return "";
+    }
+
+    /**
+     * Get the offset of a constant pool entry, which must be of the given type.
+     */
+    private int entry(int index, byte tag) throws IOException {
+        if (index < 0 || index >= offsets.length) {
+            throw new IOException("Invalid constant pool reference: " + index);
+        }
+        int offset = offsets[index];
+        if (offset == 0) {
+            throw new IOException("Constant pool at index " + index
+                    + " is null.");
+        }
+        if (bytes[offset] != tag) {
+            throw new IOException("Expected constant pool tag " + tag
+                    + " at index " + index + ", found " + bytes[offset]);
+        }
+        return offset;
+    }
+
+    private String utf8(int index) throws IOException {
+        entry(index, Constants.CONSTANT_Utf8);
+        return constantValue(index);
+    }
+
+    private String className(int index) throws IOException {
+        return utf8(u2(entry(index, Constants.CONSTANT_Class) + 1));
+    }
+
+    /**
+     * Decode the modified UTF-8 constant at the given offset, as done by
+     * {@link java.io.DataInputStream#readUTF()}.
+     */
+    private String decode(int offset) throws IOException {
+        int length = u2(offset + 1);
+        int i = offset + 3;
+        int end = i + length;
+        char[] chars = new char[length];
+        int count = 0;
+        while (i < end) {
+            int c = bytes[i] & 0xff;
+            switch (c >> 4) {
+            case 0:
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+                chars[count++] = (char) c;
+                i++;
+                break;
+
+            case 12:
+            case 13:
+                if (i + 2 > end || (bytes[i + 1] & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException(
+                            "malformed input around byte " + (i - offset - 3));
+                }
+                chars[count++] = (char) (((c & 0x1f) << 6) | (bytes[i + 1] & 0x3f));
+                i += 2;
+                break;
+
+            case 14:
+                if (i + 3 > end || (bytes[i + 1] & 0xc0) != 0x80
+                        || (bytes[i + 2] & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException(
+                            "malformed input around byte " + (i - offset - 3));
+                }
+                chars[count++] = (char) (((c & 0x0f) << 12)
+                        | ((bytes[i + 1] & 0x3f) << 6) | (bytes[i + 2] & 0x3f));
+                i += 3;
+                break;
+
+            default:
+                throw new UTFDataFormatException("malformed input around byte "
+                        + (i - offset - 3));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Normalizes the code array between the current position and the limit,
+     * identical to
+     * {@link ClassFile#formatBytecode(org.apache.bcel.util.ByteSequence, org.apache.bcel.classfile.ConstantPool)}
+     * .
+     * 
+     * @param buf
+     * @throws IOException
+     */
+    private void formatBytecode(TokenSink buf) throws IOException {
+        int start = pos;
+        int index, rem, pad, def, low, hi, npair;
+        short opcode;
+        boolean wide = false;
+
+        while (pos < limit) {
+            opcode = (short) u1();
+            buf.append(opcode);
+
+            switch (opcode) {
+            case Constants.TABLESWITCH:
+                pad = 0;
+                if ((rem = (pos - start) % 4) != 0) {
+                    pad = 4 - rem;
+                }
+
+                for (int i = 0; i < pad; i++) {
+                    buf.append(s1());
+                }
+
+                def = s4();
+                buf.append(def);
+
+                low = s4();
+                buf.append(low);
+
+                hi = s4();
+                buf.append(hi);
+
+                for (int i = 0; i < (hi - low + 1); i++) {
+                    buf.append(s4());
+                }
+                break;
+
+            case Constants.LOOKUPSWITCH:
+                pad = 0;
+                if ((rem = (pos - start) % 4) != 0) {
+                    pad = 4 - rem;
+                }
+
+                for (int i = 0; i < pad; i++) {
+                    buf.append(s1());
+                }
+
+                def = s4();
+                buf.append(def);
+
+                npair = s4();
+                buf.append(npair);
+
+                for (int i = 0; i < npair; i++) {
+                    buf.append(s4()); // match
+                    buf.append(s4()); // jump
+                }
+                break;
+
+            case Constants.GOTO:
+            case Constants.IFEQ:
+            case Constants.IFGE:
+            case Constants.IFGT:
+            case Constants.IFLE:
+            case Constants.IFLT:
+            case Constants.JSR:
+            case Constants.IFNE:
+            case Constants.IFNONNULL:
+            case Constants.IFNULL:
+            case Constants.IF_ACMPEQ:
+            case Constants.IF_ACMPNE:
+            case Constants.IF_ICMPEQ:
+            case Constants.IF_ICMPGE:
+            case Constants.IF_ICMPGT:
+            case Constants.IF_ICMPLE:
+            case Constants.IF_ICMPLT:
+            case Constants.IF_ICMPNE:
+                buf.append(s2());
+                break;
+
+            case Constants.GOTO_W:
+            case Constants.JSR_W:
+                buf.append(s4());
+                break;
+
+            case Constants.ALOAD:
+            case Constants.ASTORE:
+            case Constants.DLOAD:
+            case Constants.DSTORE:
+            case Constants.FLOAD:
+            case Constants.FSTORE:
+            case Constants.ILOAD:
+            case Constants.ISTORE:
+            case Constants.LLOAD:
+            case Constants.LSTORE:
+            case Constants.NEWARRAY:
+            case Constants.RET:
+                if (wide) {
+                    buf.append(u2());
+                    wide = false;
+                } else {
+                    buf.append(u1());
+                }
+                break;
+
+            case Constants.WIDE:
+                wide = true;
+                break;
+
+            case Constants.GETFIELD:
+            case Constants.GETSTATIC:
+            case Constants.PUTFIELD:
+            case Constants.PUTSTATIC:
+            case Constants.NEW:
+            case Constants.CHECKCAST:
+            case Constants.INSTANCEOF:
+            case Constants.INVOKESPECIAL:
+            case Constants.INVOKESTATIC:
+            case Constants.INVOKEVIRTUAL:
+            case Constants.LDC_W:
+            case Constants.LDC2_W:
+            case Constants.ANEWARRAY:
+                index = u2();
+                buf.append(constantValue(index));
+                break;
+
+            case Constants.LDC:
+                index = u1();
+                buf.append(constantValue(index));
+                break;
+
+            case Constants.MULTIANEWARRAY:
+                index = u2();
+                buf.append(constantValue(index));
+                buf.append(u1());
+                break;
+
+            case Constants.IINC:
+                // as with BCEL based normalization, wide is not reset here
+                if (wide) {
+                    buf.append(u2());
+                    buf.append(s2());
+                } else {
+                    buf.append(u1());
+                    buf.append(s1());
+                }
+                break;
+
+            case Constants.INVOKEINTERFACE:
+            case INVOKEDYNAMIC:
+                index = u2();
+                buf.append(constantValue(index));
+                buf.append(u1());
+                buf.append(u1());
+                break;
+
+            case Constants.BIPUSH:
+                buf.append(u1());
+                break;
+
+            case Constants.SIPUSH:
+                buf.append(u1());
+                buf.append(u1());
+                break;
+
+            default:
+                // no operands
+                break;
+            }
+        }
+    }
+
+    private void require(int count) throws EOFException {
+        if (count < 0 || count > limit - pos) {
+            throw new EOFException();
+        }
+    }
+
+    private void skip(int count) throws EOFException {
+        require(count);
+        pos += count;
+    }
+
+    private int u1() throws EOFException {
+        require(1);
+        return bytes[pos++] & 0xff;
+    }
+
+    private int s1() throws EOFException {
+        require(1);
+        return bytes[pos++];
+    }
+
+    private int u2() throws EOFException {
+        require(2);
+        int value = u2(pos);
+        pos += 2;
+        return value;
+    }
+
+    private int s2() throws EOFException {
+        return (short) u2();
+    }
+
+    private int s4() throws EOFException {
+        require(4);
+        int value = s4(pos);
+        pos += 4;
+        return value;
+    }
+
+    private int u2(int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+    private int s4(int offset) {
+        return ((bytes[offset] & 0xff) << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private long s8(int offset) {
+        return ((long) s4(offset) << 32) | (s4(offset + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,45 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+/**
+ * The default {@link EntryFilter}, accepting only entries that are used when
+ * creating a {@link com.redhat.victims.VictimsRecord}: types known to the
+ * {@link Processor} (eg: class files and embedded archives), pom.properties
+ * files and the archive's manifest.
+ * 
+ * @author abn
+ * 
+ */
+public class DefaultEntryFilter implements EntryFilter {
+    private static final String POM_PROPERTIES = "pom.properties";
+    private static final String MANIFEST = "meta-inf/manifest.mf";
+
+    public boolean accept(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(POM_PROPERTIES)
+                || lowerCaseName.equals(MANIFEST)
+                || (JarFile.RECURSIVE && Processor.isKnownType(Processor
+                        .getFileType(name)));
+    }
+}
@@ -0,0 +1,218 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.redhat.victims.VictimsConfig;
+
+/**
+ * An update-only sink that fans out all bytes written to it to the digests of
+ * all configured {@link Algorithms}. Once all content is written, the
+ * {@link Fingerprint} can be retrieved.
+ * 
+ * Content is fed to the digests in small blocks, so that every digest consumes
+ * a block while it is still in cache. Digest instances and the buffers used to
+ * complete and hex encode the digests are reused; short lived digesters should
+ * be obtained via {@link #acquire()} to reuse an instance per thread.
+ * 
+ * @author abn
+ * 
+ */
+public class Digester extends OutputStream {
+    private static final int SWEEP = 4096;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<Digester> LOCAL = new ThreadLocal<Digester>();
+
+    protected List<Algorithms> configured;
+    protected Algorithms[] algorithms;
+    protected MessageDigest[] digests;
+    private byte[] block = null;
+    private byte[] result = null;
+    private char[] hex = null;
+    private boolean acquired = false;
+
+    /**
+     * Get a digester for the calling thread. The instance is reused by the
+     * thread once it has been completed using {@link #fingerprint()} or
+     * {@link #release()}. If the thread's digester is still in use, or the
+     * configured algorithms changed, a new instance is returned.
+     * 
+     * @return
+     */
+    public static Digester acquire() {
+        Digester digester = LOCAL.get();
+        if (digester == null || digester.acquired || !digester.isCurrent()) {
+            Digester fresh = new Digester();
+            if (digester == null || !digester.acquired) {
+                LOCAL.set(fresh);
+            }
+            digester = fresh;
+        }
+        digester.acquired = true;
+        return digester;
+    }
+
+    /**
+     * Create a digester for all configured algorithms. Algorithms that are
+     * not available are skipped.
+     */
+    public Digester() {
+        this.configured = VictimsConfig.currentAlgorithms();
+        ArrayList<Algorithms> available = new ArrayList<Algorithms>();
+        ArrayList<MessageDigest> instances = new ArrayList<MessageDigest>();
+        for (Algorithms algorithm : configured) {
+            try {
+                instances.add(MessageDigest.getInstance(algorithm.toString()
+                        .toUpperCase()));
+                available.add(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // Do nothing just skip
+            }
+        }
+        this.algorithms = available.toArray(new Algorithms[available.size()]);
+        this.digests = instances.toArray(new MessageDigest[instances.size()]);
+    }
+
+    /**
+     * 
+     * @return true if this digester uses the currently configured algorithms.
+     */
+    protected boolean isCurrent() {
+        return configured == VictimsConfig.currentAlgorithms();
+    }
+
+    @Override
+    public void write(int b) {
+        for (MessageDigest md : digests) {
+            md.update((byte) b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (digests.length == 1) {
+            digests[0].update(b, off, len);
+            return;
+        }
+        int end = off + len;
+        for (int pos = off; pos < end; pos += SWEEP) {
+            int size = Math.min(SWEEP, end - pos);
+            for (MessageDigest md : digests) {
+                md.update(b, pos, size);
+            }
+        }
+    }
+
+    /**
+     * Update the digests with the remaining content of the given buffer. The
+     * buffer's position is not changed.
+     * 
+     * @param buffer
+     */
+    public void write(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            return;
+        }
+        // copy direct (eg: mapped) buffers once per block for all digests
+        if (block == null) {
+            block = new byte[SWEEP];
+        }
+        ByteBuffer view = buffer.duplicate();
+        while (view.hasRemaining()) {
+            int size = Math.min(block.length, view.remaining());
+            view.get(block, 0, size);
+            for (MessageDigest md : digests) {
+                md.update(block, 0, size);
+            }
+        }
+    }
+
+    /**
+     * Complete the digests and hex encode the results. The digester is reset
+     * and can be reused afterwards.
+     * 
+     * @return Hashmap of the form {algorithm:hash}
+     */
+    public Fingerprint fingerprint() {
+        Fingerprint fingerprint = new Fingerprint();
+        for (int i = 0; i < digests.length; i++) {
+            fingerprint.put(algorithms[i], encode(digests[i]));
+        }
+        acquired = false;
+        return fingerprint;
+    }
+
+    /**
+     * Discard any content written so far and allow the instance to be reused.
+     */
+    public void release() {
+        for (MessageDigest md : digests) {
+            md.reset();
+        }
+        acquired = false;
+    }
+
+    /**
+     * Complete the given digest and hex encode it using reused buffers.
+     * 
+     * @param md
+     * @return
+     */
+    private String encode(MessageDigest md) {
+        int length = md.getDigestLength();
+        if (length > 0) {
+            if (result == null || result.length < length) {
+                result = new byte[length];
+            }
+            try {
+                md.digest(result, 0, length);
+                return hex(result, length);
+            } catch (DigestException e) {
+                // fall through and let the digest allocate its result
+            }
+        }
+        // provider does not report its length
+        byte[] digest = md.digest();
+        return hex(digest, digest.length);
+    }
+
+    private String hex(byte[] bytes, int length) {
+        if (hex == null || hex.length < length * 2) {
+            hex = new char[length * 2];
+        }
+        for (int i = 0, j = 0; i < length; i++) {
+            hex[j++] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[j++] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex, 0, length * 2);
+    }
+}
@@ -0,0 +1,49 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+/**
+ * Decides which entries of an archive are processed. Entries that are not
+ * accepted are never decompressed, fingerprinted or added to the record of the
+ * archive. The filter is consulted with the entry name only, before any of its
+ * data is read.
+ * 
+ * Implementations are configured by class name using
+ * {@link com.redhat.victims.VictimsConfig.Key#ARCHIVE_FILTER} and must provide
+ * a public no-argument constructor.
+ * 
+ * @author abn
+ * 
+ */
+public interface EntryFilter {
+
+    /**
+     * Test if an archive entry should be processed.
+     * 
+     * @param name
+     *            The name of the entry within its archive.
+     * @return <code>true</code> if the entry contributes to the record of the
+     *         archive.
+     */
+    public boolean accept(String name);
+}
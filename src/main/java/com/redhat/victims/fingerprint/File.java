@@ -24,8 +24,6 @@ package com.redhat.victims.fingerprint;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.commons.io.IOUtils;
-
 /**
  * Implements handing of simple files for fingerprinting.
  * 
@@ -34,6 +32,12 @@ import org.apache.commons.io.IOUtils;
  */
 public class File extends AbstractFile {
 
+    /**
+     * For subclasses that compute their own fingerprint.
+     */
+    protected File() {
+    }
+
     /**
      * 
      * @param bytes
@@ -55,7 +59,8 @@ public class File extends AbstractFile {
      * @throws IOException
      */
     public File(InputStream is, String fileName) throws IOException {
-        this(IOUtils.toByteArray(is), fileName);
+        this.fileName = fileName;
+        this.fingerprint = Processor.fingerprint(is);
     }
 
 }
@@ -0,0 +1,129 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that feeds every byte read through it into the
+ * digests of all configured {@link Algorithms}. This allows for a file to be
+ * fingerprinted as it is being consumed, without having to hold its content
+ * in memory.
+ * 
+ * @author abn
+ * 
+ */
+public class FingerprintInputStream extends FilterInputStream {
+    private static final int BUFFER = 8192;
+
+    protected Digester digester;
+
+    /**
+     * 
+     * @param in
+     *            The stream to read from and fingerprint.
+     */
+    public FingerprintInputStream(InputStream in) {
+        super(in);
+        this.digester = new Digester();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            digester.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int size = in.read(b, off, len);
+        if (size > 0) {
+            digester.write(b, off, size);
+        }
+        return size;
+    }
+
+    /**
+     * Skipped bytes are still part of the file, hence they are read and
+     * digested.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        byte[] buffer = new byte[(int) Math.min(BUFFER, n)];
+        long remaining = n;
+        while (remaining > 0) {
+            int size = read(buffer, 0, (int) Math.min(buffer.length,
+                    remaining));
+            if (size == -1) {
+                break;
+            }
+            remaining -= size;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // marking would cause bytes to be digested more than once
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Read and digest all remaining bytes in the underlying stream.
+     * 
+     * @throws IOException
+     */
+    public void drain() throws IOException {
+        byte[] buffer = new byte[BUFFER];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // digested on read
+        }
+    }
+
+    /**
+     * Completes the digests and returns the fingerprint of all bytes read so
+     * far. The stream should not be read from after this.
+     * 
+     * @return The {@link Fingerprint} of the bytes read.
+     */
+    public Fingerprint getFingerprint() {
+        return digester.fingerprint();
+    }
+}
@@ -0,0 +1,548 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.redhat.victims.VictimsConfig;
+import com.redhat.victims.VictimsException;
+
+/**
+ * A bounded, concurrent memo mapping the digest of a raw class file to the
+ * fingerprint of its normalized form. Identical classes (eg: shaded into many
+ * archives) are thus only parsed and normalized once. Entries are kept in a
+ * number of independently locked LRU segments.
+ * 
+ * Optionally, the memo is backed by a journal so that later runs start with
+ * the fingerprints of classes already seen. Entries are appended to it, and it
+ * is rewritten with the remembered entries once it grows to twice the
+ * capacity.
+ * 
+ * @author abn
+ * 
+ */
+public class FingerprintMemo {
+    protected static final String JOURNAL_NAME = "lib.fingerprint.memo";
+    private static final String KEY_ALGORITHM = "SHA-256";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SIZE = 1024;
+    private static final ThreadLocal<MessageDigest> KEY_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(KEY_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static volatile FingerprintMemo shared = null;
+    private static volatile Signature current = null;
+    private static boolean hooked = false;
+
+    protected final String signature;
+    protected final int capacity;
+    protected final Segment[] segments;
+    protected final java.io.File journal;
+    protected Writer writer = null;
+    // entries in the journal, including ones no longer remembered
+    protected int written = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get the memo shared by all class fingerprinting. It is (re)created when
+     * the configured size, algorithms or encoding change.
+     * 
+     * @return The shared memo, or <code>null</code> if memoization is disabled
+     *         by {@link VictimsConfig.Key#MEMO_SIZE}.
+     */
+    public static FingerprintMemo shared() {
+        int size = VictimsConfig.memoSize();
+        if (size == 0) {
+            return null;
+        }
+        String signature = signature();
+        FingerprintMemo memo = shared;
+        if (memo != null && memo.capacity() == size
+                && memo.signature.equals(signature)) {
+            return memo;
+        }
+        return create(size, signature);
+    }
+
+    private static synchronized FingerprintMemo create(int size,
+            String signature) {
+        FingerprintMemo memo = shared;
+        if (memo != null && memo.capacity() == size
+                && memo.signature.equals(signature)) {
+            return memo;
+        }
+        if (memo != null) {
+            memo.close();
+        }
+        memo = null;
+        if (VictimsConfig.persistMemo()) {
+            try {
+                memo = new FingerprintMemo(size, FileUtils.getFile(
+                        VictimsConfig.home(), JOURNAL_NAME));
+            } catch (VictimsException e) {
+                // fall back to memory only
+            } catch (IOException e) {
+                // fall back to memory only
+            }
+        }
+        if (memo == null) {
+            memo = new FingerprintMemo(size);
+        }
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    FingerprintMemo memo = shared;
+                    if (memo != null) {
+                        memo.close();
+                    }
+                }
+            });
+            hooked = true;
+        }
+        shared = memo;
+        return memo;
+    }
+
+    /**
+     * The fingerprints depend on the normalizer, and the configured algorithms
+     * and encoding, so these are recorded alongside the memoized values.
+     * Anything else keeping fingerprints across runs should record it too.
+     * 
+     * @return
+     */
+    public static String signature() {
+        List<Algorithms> algorithms = VictimsConfig.currentAlgorithms();
+        Charset charset = VictimsConfig.charset();
+        Signature signature = current;
+        if (signature == null || signature.algorithms != algorithms
+                || signature.charset != charset) {
+            signature = new Signature(algorithms, charset);
+            current = signature;
+        }
+        return signature.value;
+    }
+
+    /**
+     * A signature along with the configuration it was built from, so that it
+     * is only rebuilt when the configuration changes.
+     */
+    private static final class Signature {
+        final List<Algorithms> algorithms;
+        final Charset charset;
+        final String value;
+
+        Signature(List<Algorithms> algorithms, Charset charset) {
+            this.algorithms = algorithms;
+            this.charset = charset;
+            StringBuilder sb = new StringBuilder();
+            sb.append('v').append(ClassFile.NORMALIZER_VERSION).append(',');
+            sb.append(charset.name());
+            for (Algorithms algorithm : algorithms) {
+                sb.append(',').append(algorithm.name());
+            }
+            this.value = sb.toString();
+        }
+    }
+
+    /**
+     * Create a memory only memo.
+     * 
+     * @param capacity
+     *            The maximum number of fingerprints to remember.
+     */
+    public FingerprintMemo(int capacity) {
+        this.signature = signature();
+        this.capacity = capacity;
+        this.journal = null;
+        this.segments = segments(capacity);
+    }
+
+    /**
+     * Create a memo backed by the given journal. Fingerprints already in the
+     * journal are loaded, unless it was written by a different normalizer, for
+     * different algorithms or a different encoding, in which case it is
+     * discarded.
+     * 
+     * @param capacity
+     *            The maximum number of fingerprints to remember.
+     * @param journal
+     *            The file to persist fingerprints in.
+     * @throws IOException
+     */
+    public FingerprintMemo(int capacity, java.io.File journal)
+            throws IOException {
+        this.signature = signature();
+        this.capacity = capacity;
+        this.journal = journal;
+        this.segments = segments(capacity);
+        int loaded = load();
+        if (loaded < 0 || loaded > capacity) {
+            // missing, stale or overgrown: start it afresh
+            compact();
+        } else {
+            written = loaded;
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journal, true), ASCII));
+    }
+
+    /**
+     * Split the capacity over segments. Small memos use fewer segments so that
+     * an uneven spread of keys does not evict entries early.
+     * 
+     * @param capacity
+     * @return
+     */
+    private static Segment[] segments(int capacity) {
+        int count = 1;
+        while (count < SEGMENTS && count * SEGMENT_SIZE < capacity) {
+            count <<= 1;
+        }
+        Segment[] segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, (capacity + count - 1)
+                    / count));
+        }
+        return segments;
+    }
+
+    /**
+     * 
+     * @return The maximum number of fingerprints remembered.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 
+     * @return The number of fingerprints currently remembered.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 
+     * @return The number of fingerprints served from the memo.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 
+     * @return The number of fingerprints that had to be computed.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the fingerprint of the normalized form of the given class. It is only
+     * computed if a class with identical bytes has not been seen before.
+     * 
+     * @param bytes
+     *            The input class as a byte array.
+     * @param fileName
+     *            The name of the file.
+     * @return The fingerprint of the normalized bytecode.
+     * @throws IOException
+     */
+    public Fingerprint fingerprint(byte[] bytes, String fileName)
+            throws IOException {
+        Id id = new Id(KEY_DIGEST.get().digest(bytes));
+        Fingerprint fingerprint = get(id);
+        if (fingerprint != null) {
+            hits.incrementAndGet();
+            return fingerprint;
+        }
+        misses.incrementAndGet();
+        fingerprint = ClassFile.digest(bytes, fileName);
+        put(id, fingerprint);
+        append(id, fingerprint);
+        return fingerprint;
+    }
+
+    private Segment segment(Id id) {
+        return segments[(id.hash ^ (id.hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Callers are handed a copy, the memoized value is never exposed.
+     */
+    private Fingerprint get(Id id) {
+        Segment segment = segment(id);
+        Fingerprint fingerprint;
+        synchronized (segment) {
+            fingerprint = segment.get(id);
+        }
+        if (fingerprint == null) {
+            return null;
+        }
+        Fingerprint copy = new Fingerprint();
+        copy.putAll(fingerprint);
+        return copy;
+    }
+
+    private void put(Id id, Fingerprint fingerprint) {
+        Fingerprint copy = new Fingerprint();
+        copy.putAll(fingerprint);
+        Segment segment = segment(id);
+        synchronized (segment) {
+            segment.put(id, copy);
+        }
+    }
+
+    /**
+     * Read the journal into the memo.
+     * 
+     * @return The number of entries read, or -1 if the journal is missing or
+     *         not valid for the current configuration.
+     * @throws IOException
+     */
+    private int load() throws IOException {
+        if (!journal.isFile()) {
+            return -1;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), ASCII));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals("# " + signature)) {
+                return -1;
+            }
+            int count = 0;
+            while ((line = reader.readLine()) != null) {
+                if (parse(line)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Parse a journal line of the form
+     * <code>key ALGORITHM=value ALGORITHM=value</code>. Malformed lines (eg: a
+     * partially written last line) are ignored.
+     * 
+     * @param line
+     * @return <code>true</code> if an entry was added.
+     */
+    private boolean parse(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length < 2) {
+            return false;
+        }
+        try {
+            Id id = new Id(Hex.decodeHex(fields[0].toCharArray()));
+            Fingerprint fingerprint = new Fingerprint();
+            for (int i = 1; i < fields.length; i++) {
+                int split = fields[i].indexOf('=');
+                if (split < 0) {
+                    return false;
+                }
+                fingerprint.put(Algorithms.valueOf(fields[i]
+                        .substring(0, split)), fields[i].substring(split + 1));
+            }
+            put(id, fingerprint);
+            return true;
+        } catch (DecoderException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the entries currently in the memo.
+     * 
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        written = 0;
+        List<Map.Entry<Id, Fingerprint>> entries = new ArrayList<Map.Entry<Id, Fingerprint>>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries.addAll(segment.entrySet());
+            }
+        }
+        FileUtils.forceMkdir(journal.getAbsoluteFile().getParentFile());
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journal, false), ASCII));
+        try {
+            out.write("# " + signature + "\n");
+            for (Map.Entry<Id, Fingerprint> entry : entries) {
+                write(out, entry.getKey(), entry.getValue());
+                written++;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(Writer out, Id id, Fingerprint fingerprint)
+            throws IOException {
+        out.write(Hex.encodeHex(id.bytes));
+        for (Map.Entry<Algorithms, String> value : fingerprint.entrySet()) {
+            out.write(' ');
+            out.write(value.getKey().name());
+            out.write('=');
+            out.write(value.getValue());
+        }
+        out.write('\n');
+    }
+
+    private void append(Id id, Fingerprint fingerprint) {
+        if (writer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                write(writer, id, fingerprint);
+                if (++written > capacity * 2) {
+                    // evicted entries make up half of it
+                    writer.close();
+                    writer = null;
+                    compact();
+                    open();
+                }
+            } catch (IOException e) {
+                // stop persisting, the memo itself remains usable
+                IOUtils.closeQuietly(writer);
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Write any buffered entries to the journal.
+     */
+    public synchronized void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                IOUtils.closeQuietly(writer);
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Flush and close the journal. The memo remains usable in memory.
+     */
+    public synchronized void close() {
+        flush();
+        IOUtils.closeQuietly(writer);
+        writer = null;
+    }
+
+    /**
+     * A raw class file digest usable as a map key.
+     */
+    protected static final class Id {
+        private final byte[] bytes;
+        private final int hash;
+
+        protected Id(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Id && Arrays.equals(bytes, ((Id) obj).bytes);
+        }
+    }
+
+    /**
+     * A LRU ordered segment of the memo. Access is synchronized on the segment.
+     */
+    @SuppressWarnings("serial")
+    protected static final class Segment extends LinkedHashMap<Id, Fingerprint> {
+        private final int capacity;
+
+        protected Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Id, Fingerprint> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.redhat.victims.VictimsConfig;
+
+/**
+ * A bounded pool of worker threads shared by all fingerprinting tasks. Work is
+ * forked into a {@link TaskGroup}; a thread joining a group runs the group's
+ * tasks that have not yet been picked up by a worker instead of blocking.
+ * Nested archives can thus fork and join their own groups from within a
+ * worker without deadlocking and without creating new threads, keeping the
+ * thread count at the configured parallelism however deep or wide the archive
+ * is.
+ * 
+ * @author abn
+ * 
+ */
+public class FingerprintPool {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static FingerprintPool shared = null;
+
+    protected final ThreadPoolExecutor executor;
+    protected final int parallelism;
+
+    /**
+     * Get the pool shared by all fingerprinting. It is created on first use
+     * with the number of threads configured by
+     * {@link VictimsConfig.Key#THREADS}.
+     * 
+     * @return
+     */
+    public static synchronized FingerprintPool shared() {
+        if (shared == null) {
+            shared = new FingerprintPool(VictimsConfig.threads());
+        }
+        return shared;
+    }
+
+    /**
+     * 
+     * @param parallelism
+     *            The maximum number of worker threads.
+     */
+    public FingerprintPool(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = new ThreadPoolExecutor(this.parallelism,
+                this.parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 
+     * @return The maximum number of worker threads in this pool.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Create a new group of tasks with a default limit on the number of
+     * outstanding tasks.
+     * 
+     * @return
+     */
+    public TaskGroup group() {
+        return group(parallelism * 2);
+    }
+
+    /**
+     * Create a new group of tasks.
+     * 
+     * @param limit
+     *            The maximum number of outstanding tasks in the group. Forking
+     *            beyond this will run tasks in the calling thread.
+     * @return
+     */
+    public TaskGroup group(int limit) {
+        return new TaskGroup(Math.max(1, limit));
+    }
+
+    /**
+     * Stop accepting new tasks. Tasks forked after this are run by the
+     * joining thread.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A group of forked tasks that can be joined.
+     * 
+     * @author abn
+     * 
+     */
+    public class TaskGroup {
+        private final ArrayDeque<Task> queued = new ArrayDeque<Task>();
+        private final int limit;
+        private int outstanding = 0;
+
+        protected TaskGroup(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Fork a new task. If the group already has the maximum number of
+         * outstanding tasks, the calling thread helps to run them first.
+         * 
+         * @param runnable
+         * @throws InterruptedException
+         */
+        public void fork(Runnable runnable) throws InterruptedException {
+            while (!reserve()) {
+                if (!help()) {
+                    synchronized (this) {
+                        if (outstanding >= limit && queued.isEmpty()) {
+                            wait();
+                        }
+                    }
+                }
+            }
+            Task task = new Task(runnable);
+            synchronized (this) {
+                queued.add(task);
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the task stays queued and is run when joined
+            }
+        }
+
+        /**
+         * Wait for all tasks forked in this group to complete. Tasks not yet
+         * picked up by a worker are run in the calling thread.
+         * 
+         * @throws InterruptedException
+         */
+        public void join() throws InterruptedException {
+            while (help()) {
+                // keep helping
+            }
+            synchronized (this) {
+                while (outstanding > 0) {
+                    wait();
+                }
+            }
+        }
+
+        private synchronized boolean reserve() {
+            if (outstanding < limit) {
+                outstanding++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Run a queued task of this group in the calling thread.
+         * 
+         * @return <code>true</code> if a task was run.
+         */
+        private boolean help() {
+            Task task;
+            synchronized (this) {
+                task = queued.poll();
+            }
+            if (task == null) {
+                return false;
+            }
+            task.execute();
+            return true;
+        }
+
+        /**
+         * A forked task. It is run by whichever thread claims it first.
+         */
+        private class Task implements Runnable {
+            private final Runnable runnable;
+
+            Task(Runnable runnable) {
+                this.runnable = runnable;
+            }
+
+            public void run() {
+                boolean claimed;
+                synchronized (TaskGroup.this) {
+                    claimed = queued.remove(this);
+                }
+                if (claimed) {
+                    execute();
+                }
+            }
+
+            void execute() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    // as with ExecutorService.submit, failures of individual
+                    // tasks are not propagated to the group
+                } finally {
+                    synchronized (TaskGroup.this) {
+                        outstanding--;
+                        TaskGroup.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon worker threads.
+     */
+    private static class WorkerFactory implements ThreadFactory {
+        private static final AtomicInteger POOLS = new AtomicInteger();
+        private final AtomicInteger threads = new AtomicInteger();
+        private final int pool = POOLS.incrementAndGet();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format(
+                    "victims-fingerprint-%d-%d", pool,
+                    threads.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
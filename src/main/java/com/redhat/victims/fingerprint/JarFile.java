@@ -21,24 +21,40 @@ package com.redhat.victims.fingerprint;
  * #L%
  */
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import com.redhat.victims.VictimsConfig;
+import com.redhat.victims.fingerprint.FingerprintPool.TaskGroup;
 
 /**
- * Implements handing of Archive files for fingerprinting.
+ * Implements handing of Archive files for fingerprinting. Archives on disk or
+ * in memory are read via their central directory using a {@link MappedArchive}
+ * and only entries that are of interest are decompressed. Archives provided as
+ * a stream are processed as they are read, entries are only buffered if they
+ * are required by their processor. Entries are processed as tasks forked on
+ * the shared {@link FingerprintPool}.
+ * 
+ * Embedded archives are never copied out of their parent. Stored ones are read
+ * in place from the parent's data, compressed ones are streamed. The depth of
+ * nesting and the total amount of data processed are bounded by {@link Limits}
+ * shared by the archive and everything embedded in it.
  * 
  * @author abn
  * 
@@ -48,12 +64,18 @@ public class JarFile extends AbstractFile {
      * Indicates if archive contents get processed. Default is true.
      */
     public static final boolean RECURSIVE = true;
+    private static final Logger LOG = Logger.getLogger(JarFile.class
+            .getName());
     private static final int BUFFER = 2048;
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
 
     protected ArrayList<Object> contents;
     protected ArrayList<Object> embedded;
     protected HashMap<String, Metadata> metadata;
     protected JarInputStream jis;
+    protected Limits limits;
+    protected int depth;
 
     /**
      * Synchronized method of adding metadata
@@ -106,12 +128,15 @@ public class JarFile extends AbstractFile {
     }
 
     /**
-     * Helper method to sumit a new threaded tast to a given executor.
+     * Helper method to fork a new task processing the given file. The number
+     * of outstanding tasks, and hence the number of buffered files, is bounded
+     * by the group.
      * 
-     * @param executor
+     * @param group
      * @param file
+     * @throws IOException
      */
-    protected void submitJob(ExecutorService executor, Content file) {
+    protected void submitJob(TaskGroup group, Content file) throws IOException {
         // lifted from http://stackoverflow.com/a/5853198/1874604
         class OneShotTask implements Runnable {
             Content file;
@@ -124,39 +149,226 @@ public class JarFile extends AbstractFile {
                 processContent(file);
             }
         }
-        // we do not care about Future
-        executor.submit(new OneShotTask(file));
+        fork(group, new OneShotTask(file));
     }
 
     /**
+     * Helper method to fork a task that reads and processes an entry of a
+     * {@link MappedArchive}. Reading is done by the task, so entries are
+     * decompressed in parallel and embedded archives are processed as
+     * subtasks.
      * 
-     * @param bytes
-     *            A byte array containing the bytes of the file
-     * @param fileName
-     *            Name of the file being provided as bytes
+     * @param group
+     * @param archive
+     * @param entry
      * @throws IOException
      */
-    public JarFile(byte[] bytes, String fileName) throws IOException {
+    protected void submitJob(TaskGroup group, final MappedArchive archive,
+            final MappedArchive.Entry entry) throws IOException {
+        fork(group, new Runnable() {
+            public void run() {
+                String name = entry.getName();
+                String fileType = Processor.getFileType(name);
+                try {
+                    if (Processor.requiresBytes(fileType)
+                            || !Processor.isKnownType(fileType)) {
+                        if (limits.charge(entry.getSize())) {
+                            processContent(new Content(name, archive
+                                    .read(entry)));
+                        }
+                    } else if (isArchive(fileType)) {
+                        addContent(processEmbedded(archive, entry), name);
+                    } else {
+                        InputStream is = archive.open(entry);
+                        try {
+                            addContent(Processor.process(limits.charged(is),
+                                    name, true), name);
+                        } finally {
+                            is.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // skip entries that cannot be read
+                }
+            }
+        });
+    }
+
+    /**
+     * Test if the given file type is processed as an embedded archive.
+     * 
+     * @param fileType
+     * @return
+     */
+    protected boolean isArchive(String fileType) {
+        return JarFile.class.equals(Processor.getProcessor(fileType));
+    }
+
+    /**
+     * Process an archive embedded in this one from the given stream. Beyond
+     * the maximum depth, it is only fingerprinted.
+     * 
+     * @param is
+     * @param name
+     * @return The record of the embedded archive, or <code>null</code> if it
+     *         could not be processed.
+     */
+    protected Artifact processEmbedded(InputStream is, String name) {
+        try {
+            if (depth >= limits.maxDepth) {
+                return new File(is, name).getRecord();
+            }
+            return new JarFile(is, name, limits, depth + 1).getRecord();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Process an archive embedded in the given archive. Stored archives are
+     * read in place from the parent, everything else is streamed. Either way,
+     * its bytes are charged to the data budget.
+     * 
+     * @param archive
+     * @param entry
+     * @return The record of the embedded archive, or <code>null</code> if it
+     *         could not be processed.
+     * @throws IOException
+     */
+    protected Artifact processEmbedded(MappedArchive archive,
+            MappedArchive.Entry entry) throws IOException {
+        if (entry.getMethod() == MappedArchive.STORED
+                && depth < limits.maxDepth) {
+            if (!limits.charge(entry.getSize())) {
+                return null;
+            }
+            MappedArchive embedded = null;
+            try {
+                embedded = new MappedArchive(archive.data(entry));
+            } catch (IOException e) {
+                // no central directory, fall back to streaming
+            }
+            if (embedded != null) {
+                return new JarFile(embedded, entry.getName(), limits,
+                        depth + 1).getRecord();
+            }
+            // already charged
+            InputStream is = archive.open(entry);
+            try {
+                return processEmbedded(is, entry.getName());
+            } finally {
+                is.close();
+            }
+        }
+        InputStream is = archive.open(entry);
+        try {
+            return processEmbedded(limits.charged(is), entry.getName());
+        } finally {
+            is.close();
+        }
+    }
+
+    private void fork(TaskGroup group, Runnable task) throws IOException {
+        try {
+            group.fork(task);
+        } catch (InterruptedException e) {
+            throw new IOException(
+                    "Interrupted while waiting to process an entry.", e);
+        }
+    }
+
+    /**
+     * Test if an entry with the given name contributes to the record of this
+     * archive, as decided by the configured {@link EntryFilter}. Entries that
+     * do not are never decompressed.
+     * 
+     * @param name
+     * @return
+     */
+    protected boolean isWanted(String name) {
+        return limits.filter.accept(name);
+    }
+
+    /**
+     * Handle the current entry of the archive stream. Entries whose processor
+     * require the complete file are buffered and forked as a task,
+     * other known types (eg: embedded archives) are processed directly from
+     * the stream. Everything else is skipped without being buffered.
+     * 
+     * @param group
+     * @param entry
+     * @throws IOException
+     */
+    protected void processEntry(TaskGroup group, JarEntry entry)
+            throws IOException {
+        String name = entry.getName();
+        if (!isWanted(name)) {
+            return;
+        }
+
+        String fileType = Processor.getFileType(name);
+        if (Processor.requiresBytes(fileType)
+                || !Processor.isKnownType(fileType)) {
+            byte[] bytes = readEntry(entry);
+            if (bytes != null) {
+                submitJob(group, new Content(name, bytes));
+            }
+        } else if (isArchive(fileType)) {
+            addContent(processEmbedded(limits.charged(jis), name), name);
+        } else {
+            addContent(Processor.process(limits.charged(jis), name, true),
+                    name);
+        }
+    }
+
+    /**
+     * Initialize the record containers.
+     */
+    protected void init() {
         this.contents = new ArrayList<Object>();
         this.embedded = new ArrayList<Object>();
         this.metadata = new HashMap<String, Metadata>();
-        this.fileName = fileName;
-        this.jis = new JarInputStream(new ByteArrayInputStream(bytes));
+    }
 
-        // process contents
-        Content file;
-        ExecutorService executor = Executors.newCachedThreadPool();
-        while ((file = getNextFile()) != null) {
-            submitJob(executor, file);
-        }
-        executor.shutdown();
+    /**
+     * Wait for all tasks forked in the given group to complete.
+     * 
+     * @param group
+     * @throws IOException
+     */
+    protected void await(TaskGroup group) throws IOException {
         try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            group.join();
         } catch (InterruptedException e) {
             // probably a bad idea wrap as an IO Exception for now
             throw new IOException(
-                    "There was an issue while waiting for the ExecutorService "
-                            + "to terminate.", e);
+                    "There was an issue while waiting for the forked tasks "
+                            + "to complete.", e);
+        }
+    }
+
+    /**
+     * Process the archive provided by the given stream. The stream is
+     * fingerprinted as it is read and is not closed.
+     * 
+     * @param is
+     * @throws IOException
+     */
+    protected void process(InputStream is) throws IOException {
+        init();
+        FingerprintInputStream fis = new FingerprintInputStream(
+                new CloseShieldInputStream(is));
+        this.jis = new JarInputStream(fis);
+
+        // process contents
+        JarEntry entry;
+        TaskGroup group = FingerprintPool.shared().group();
+        try {
+            while ((entry = jis.getNextJarEntry()) != null) {
+                processEntry(group, entry);
+            }
+        } finally {
+            await(group);
         }
 
         // Process the metadata from the manifest if available
@@ -165,10 +377,81 @@ public class JarFile extends AbstractFile {
             metadata.put("MANIFEST.MF", Metadata.fromManifest(mf));
         }
 
-        this.fingerprint = Processor.fingerprint(bytes);
+        // anything after the last entry is still part of the archive
+        fis.drain();
+        this.fingerprint = fis.getFingerprint();
         jis.close();
     }
 
+    /**
+     * Process an archive via its central directory. Only entries that are
+     * wanted are ever decompressed.
+     * 
+     * @param archive
+     * @throws IOException
+     */
+    protected void process(MappedArchive archive) throws IOException {
+        init();
+        List<MappedArchive.Entry> entries = archive.entries();
+
+        // Like JarInputStream, only use a manifest that leads the archive
+        int first = 0;
+        if (!entries.isEmpty()
+                && entries.get(0).getName().equalsIgnoreCase(META_INF)) {
+            first = 1;
+        }
+        MappedArchive.Entry manifest = null;
+        if (entries.size() > first
+                && entries.get(first).getName().equalsIgnoreCase(MANIFEST)) {
+            manifest = entries.get(first);
+        }
+
+        TaskGroup group = FingerprintPool.shared().group();
+        try {
+            for (MappedArchive.Entry entry : entries) {
+                if (entry != manifest && !entry.isDirectory()
+                        && isWanted(entry.getName())) {
+                    submitJob(group, archive, entry);
+                }
+            }
+        } finally {
+            await(group);
+        }
+
+        if (manifest != null) {
+            InputStream is = archive.open(manifest);
+            try {
+                metadata.put("MANIFEST.MF", Metadata.fromManifest(is));
+            } finally {
+                is.close();
+            }
+        }
+
+        this.fingerprint = Processor.fingerprint(archive.buffer());
+    }
+
+    /**
+     * 
+     * @param bytes
+     *            A byte array containing the bytes of the file
+     * @param fileName
+     *            Name of the file being provided as bytes
+     * @throws IOException
+     */
+    public JarFile(byte[] bytes, String fileName) throws IOException {
+        this.fileName = fileName;
+        this.limits = Limits.configured(fileName);
+        MappedArchive archive;
+        try {
+            archive = new MappedArchive(ByteBuffer.wrap(bytes));
+        } catch (IOException e) {
+            // not readable via central directory, fall back to streaming
+            process(new ByteArrayInputStream(bytes));
+            return;
+        }
+        process(archive);
+    }
+
     /**
      * 
      * @param fileName
@@ -176,7 +459,36 @@ public class JarFile extends AbstractFile {
      * @throws IOException
      */
     public JarFile(String fileName) throws IOException {
-        this(new FileInputStream(fileName), fileName);
+        this(fileName, fileName);
+    }
+
+    /**
+     * 
+     * @param path
+     *            The path to the archive on disk. The archive is memory mapped
+     *            if possible.
+     * @param fileName
+     *            Name of the file being processed.
+     * @throws IOException
+     */
+    public JarFile(String path, String fileName) throws IOException {
+        this.fileName = fileName;
+        this.limits = Limits.configured(fileName);
+        MappedArchive archive;
+        try {
+            archive = MappedArchive.map(path);
+        } catch (IOException e) {
+            // too large to map or no central directory, fall back to
+            // streaming
+            InputStream is = new BufferedInputStream(new FileInputStream(path));
+            try {
+                process(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            return;
+        }
+        process(archive);
     }
 
     /**
@@ -188,7 +500,47 @@ public class JarFile extends AbstractFile {
      * @throws IOException
      */
     public JarFile(InputStream is, String fileName) throws IOException {
-        this(IOUtils.toByteArray(is), fileName);
+        this(is, fileName, Limits.configured(fileName), 0);
+    }
+
+    /**
+     * 
+     * @param is
+     *            The embedded archive as an input stream.
+     * @param fileName
+     *            The name of the embedded archive.
+     * @param limits
+     *            The limits shared with the parent archive.
+     * @param depth
+     *            The depth at which the archive is embedded.
+     * @throws IOException
+     */
+    protected JarFile(InputStream is, String fileName, Limits limits,
+            int depth) throws IOException {
+        this.fileName = fileName;
+        this.limits = limits;
+        this.depth = depth;
+        process(is);
+    }
+
+    /**
+     * 
+     * @param archive
+     *            The embedded archive, read in place.
+     * @param fileName
+     *            The name of the embedded archive.
+     * @param limits
+     *            The limits shared with the parent archive.
+     * @param depth
+     *            The depth at which the archive is embedded.
+     * @throws IOException
+     */
+    protected JarFile(MappedArchive archive, String fileName, Limits limits,
+            int depth) throws IOException {
+        this.fileName = fileName;
+        this.limits = limits;
+        this.depth = depth;
+        process(archive);
     }
 
     public Artifact getRecord() {
@@ -200,25 +552,118 @@ public class JarFile extends AbstractFile {
     }
 
     /**
-     * Get the next file as a {@link Content} in this archive.
+     * Read the content of the current entry in this archive.
      * 
-     * @return
+     * @param entry
+     * @return The content, or <code>null</code> if reading it would exceed the
+     *         data budget.
      * @throws IOException
      */
-    protected Content getNextFile() throws IOException {
-        JarEntry entry;
-        if ((entry = jis.getNextJarEntry()) != null) {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            byte[] data = new byte[BUFFER];
-            int size;
-            while ((size = jis.read(data, 0, data.length)) != -1) {
-                bos.write(data, 0, size);
-            }
-            Content file = new Content(entry.getName(), bos.toByteArray());
-            bos.close();
-            return file;
-        }
-        return null;
+    protected byte[] readEntry(JarEntry entry) throws IOException {
+        long size = entry.getSize();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                size > 0 && size < Integer.MAX_VALUE ? (int) size : BUFFER);
+        byte[] data = new byte[BUFFER];
+        int read;
+        while ((read = jis.read(data, 0, data.length)) != -1) {
+            if (!limits.charge(read)) {
+                return null;
+            }
+            bos.write(data, 0, read);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Limits shared by an archive and all archives embedded in it, including
+     * the filter for entries to process.
+     * 
+     * @author abn
+     * 
+     */
+    protected static class Limits {
+        protected final int maxDepth;
+        protected final EntryFilter filter;
+        private final String name;
+        private final AtomicLong remaining;
+
+        /**
+         * 
+         * @param maxDepth
+         *            The maximum depth of embedded archives that are
+         *            processed. Deeper archives are only fingerprinted.
+         * @param budget
+         *            The maximum number of uncompressed bytes to process.
+         * @param filter
+         *            The filter deciding which entries are processed.
+         * @param name
+         *            The name of the outermost archive, for reporting.
+         */
+        protected Limits(int maxDepth, long budget, EntryFilter filter,
+                String name) {
+            this.maxDepth = maxDepth;
+            this.filter = filter;
+            this.name = name;
+            this.remaining = new AtomicLong(budget);
+        }
+
+        /**
+         * 
+         * @return New limits as configured by
+         *         {@link VictimsConfig.Key#ARCHIVE_DEPTH},
+         *         {@link VictimsConfig.Key#ARCHIVE_BUDGET} and
+         *         {@link VictimsConfig.Key#ARCHIVE_FILTER}.
+         */
+        protected static Limits configured(String name) {
+            return new Limits(VictimsConfig.archiveDepth(),
+                    VictimsConfig.archiveBudget(), VictimsConfig.entryFilter(),
+                    name);
+        }
+
+        /**
+         * Take the given number of bytes from the budget. Once the budget is
+         * exceeded, no further content is processed, leaving the record of
+         * the archive incomplete. This is logged once per archive.
+         * 
+         * @param bytes
+         * @return <code>true</code> if the bytes may be processed.
+         */
+        protected boolean charge(long bytes) {
+            while (true) {
+                long current = remaining.get();
+                if (current < bytes || current < 0) {
+                    if (remaining.getAndSet(-1) >= 0) {
+                        LOG.warning(String.format("Archive data budget "
+                                + "exceeded, the record of %s is incomplete "
+                                + "and may miss embedded matches", name));
+                    }
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current
+                        - Math.max(0, bytes))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Wrap a stream so that the bytes read from it are taken from the
+         * budget. Once the budget is exceeded, reading fails. Closing the
+         * wrapper leaves the stream open.
+         * 
+         * @param is
+         * @return
+         */
+        protected InputStream charged(InputStream is) {
+            return new CloseShieldInputStream(is) {
+                @Override
+                protected void afterRead(int n) throws IOException {
+                    if (n > 0 && !charge(n)) {
+                        throw new IOException("Archive data budget exceeded.");
+                    }
+                }
+            };
+        }
     }
 
     /**
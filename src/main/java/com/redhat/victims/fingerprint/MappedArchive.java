@@ -0,0 +1,470 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A read-only, random access reader for zip archives held in a
+ * {@link ByteBuffer}, typically a memory mapped file. The entries are read
+ * from the central directory, so no entry is decompressed unless it is
+ * explicitly read.
+ * 
+ * @author abn
+ * 
+ */
+public class MappedArchive {
+    private static final int BUFFER = 8192;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // signatures
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int ZIP64_ENDSIG = 0x06064b50;
+    private static final int ZIP64_LOCSIG = 0x07064b50;
+
+    // header sizes
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int ZIP64_LOCHDR = 20;
+
+    private static final int ZIP64_EXTID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    protected ByteBuffer buffer;
+    protected List<Entry> entries;
+
+    /**
+     * Memory map the given file and read its central directory.
+     * 
+     * @param fileName
+     *            Path to the archive on disk.
+     * @return
+     * @throws IOException
+     *             If the file cannot be mapped or is not a valid archive.
+     */
+    public static MappedArchive map(String fileName) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format(
+                        "Archive is too large to be mapped: %s", fileName));
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedArchive(channel.map(MapMode.READ_ONLY, 0, size));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 
+     * @param buffer
+     *            A buffer containing the complete archive.
+     * @throws IOException
+     *             If a valid central directory could not be found.
+     */
+    public MappedArchive(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.clear();
+        try {
+            this.entries = Collections
+                    .unmodifiableList(readCentralDirectory());
+        } catch (IndexOutOfBoundsException e) {
+            throw new ZipException("Malformed central directory");
+        }
+    }
+
+    /**
+     * 
+     * @return A read-only view of the complete archive.
+     */
+    public ByteBuffer buffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 
+     * @return All entries in the order they appear in the central directory.
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    private int u16(int pos) {
+        return buffer.getShort(pos) & 0xFFFF;
+    }
+
+    private long u32(int pos) {
+        return buffer.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    private int offset(long value) throws ZipException {
+        if (value < 0 || value > buffer.limit()) {
+            throw new ZipException("Invalid offset in central directory");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Locate the end of central directory record by scanning backwards over
+     * the maximum comment length.
+     * 
+     * @return The position of the record.
+     * @throws ZipException
+     */
+    private int findEnd() throws ZipException {
+        int limit = buffer.limit();
+        int min = Math.max(0, limit - ENDHDR - 0xFFFF);
+        for (int pos = limit - ENDHDR; pos >= min; pos--) {
+            if (buffer.getInt(pos) == ENDSIG
+                    && pos + ENDHDR + u16(pos + 20) <= limit) {
+                return pos;
+            }
+        }
+        throw new ZipException("Could not find the end of central directory");
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        int end = findEnd();
+        long total = u16(end + 10);
+        long size = u32(end + 12);
+        long position = u32(end + 16);
+
+        int locator = end - ZIP64_LOCHDR;
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_LOCSIG) {
+            int end64 = offset(buffer.getLong(locator + 8));
+            if (buffer.getInt(end64) == ZIP64_ENDSIG) {
+                total = buffer.getLong(end64 + 32);
+                size = buffer.getLong(end64 + 40);
+                position = buffer.getLong(end64 + 48);
+                end = end64;
+            }
+        }
+
+        // archives with prepended data (eg: self extracting) have offsets
+        // relative to the start of the zip content
+        int base = offset(end - size - position);
+        int pos = offset(base + position);
+
+        ArrayList<Entry> result = new ArrayList<Entry>(
+                (int) Math.min(total, 0xFFFF));
+        while (pos + CENHDR <= end && buffer.getInt(pos) == CENSIG) {
+            Entry entry = new Entry();
+            entry.method = u16(pos + 10);
+            entry.compressedSize = u32(pos + 20);
+            entry.size = u32(pos + 24);
+            int nameLength = u16(pos + 28);
+            int extraLength = u16(pos + 30);
+            int commentLength = u16(pos + 32);
+            long local = u32(pos + 42);
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(pos + CENHDR);
+            view.get(name);
+            entry.name = new String(name, UTF8);
+
+            // zip64 extended information replaces the saturated values
+            int extra = pos + CENHDR + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = u16(extra);
+                int length = u16(extra + 2);
+                if (id == ZIP64_EXTID) {
+                    int field = extra + 4;
+                    if (entry.size == ZIP64_MAGIC) {
+                        entry.size = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (entry.compressedSize == ZIP64_MAGIC) {
+                        entry.compressedSize = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (local == ZIP64_MAGIC) {
+                        local = buffer.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + length;
+            }
+            entry.local = offset(base + local);
+
+            result.add(entry);
+            pos = extraEnd + commentLength;
+        }
+        return result;
+    }
+
+    /**
+     * Get a view of the raw (possibly compressed) data of an entry. This does
+     * not copy any data.
+     * 
+     * @param entry
+     * @return
+     * @throws ZipException
+     */
+    public ByteBuffer data(Entry entry) throws ZipException {
+        int local = entry.local;
+        if (local + LOCHDR > buffer.limit() || buffer.getInt(local) != LOCSIG) {
+            throw new ZipException(String.format(
+                    "Invalid local header for entry: %s", entry.name));
+        }
+        int start = local + LOCHDR + u16(local + 26) + u16(local + 28);
+        int end = offset(start + entry.compressedSize);
+        ByteBuffer data = buffer.duplicate();
+        data.limit(end);
+        data.position(start);
+        return data.slice();
+    }
+
+    /**
+     * Open a stream that provides the uncompressed content of the given entry.
+     * 
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    public InputStream open(Entry entry) throws IOException {
+        ByteBuffer data = data(entry);
+        switch (entry.method) {
+        case STORED:
+            return new ByteBufferInputStream(data);
+        case DEFLATED:
+            return new InflatingInputStream(new ByteBufferInputStream(data));
+        default:
+            throw new ZipException(String.format(
+                    "Unsupported compression method %d for entry: %s",
+                    entry.method, entry.name));
+        }
+    }
+
+    /**
+     * Read the uncompressed content of the given entry.
+     * 
+     * @param entry
+     * @return
+     * @throws IOException
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.method != DEFLATED || entry.size > Integer.MAX_VALUE) {
+            InputStream is = open(entry);
+            try {
+                return IOUtils.toByteArray(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        // the uncompressed size is known, so inflate directly into the result
+        ByteBuffer data = data(entry);
+        byte[] result = new byte[(int) entry.size];
+        byte[] input = new byte[Math.max(1, Math.min(BUFFER, data.remaining()))];
+        Inflater inflater = new Inflater(true);
+        try {
+            int offset = 0;
+            boolean padded = false;
+            while (offset < result.length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int length = Math.min(input.length, data.remaining());
+                    if (length == 0) {
+                        if (padded) {
+                            break;
+                        }
+                        // nowrap inflaters may require an extra dummy byte
+                        input[0] = 0;
+                        length = 1;
+                        padded = true;
+                    } else {
+                        data.get(input, 0, length);
+                    }
+                    inflater.setInput(input, 0, length);
+                }
+                offset += inflater.inflate(result, offset, result.length
+                        - offset);
+                if (inflater.needsDictionary()) {
+                    break;
+                }
+            }
+            if (offset != result.length) {
+                throw new ZipException(String.format(
+                        "Unexpected end of data for entry: %s", entry.name));
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(String.format(
+                    "Invalid compressed data for entry %s: %s", entry.name,
+                    e.getMessage()));
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+    /**
+     * An entry as described by the central directory.
+     * 
+     * @author abn
+     * 
+     */
+    public static class Entry {
+        protected String name;
+        protected int method;
+        protected long size;
+        protected long compressedSize;
+        protected int local;
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return The uncompressed size of the entry.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * An {@link InputStream} reading from a {@link ByteBuffer}.
+     * 
+     * @author abn
+     * 
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * An {@link InflaterInputStream} for raw deflate data that releases its
+     * {@link Inflater} when closed.
+     * 
+     * @author abn
+     * 
+     */
+    protected static class InflatingInputStream extends InflaterInputStream {
+        private boolean eof = false;
+        private boolean closed = false;
+
+        public InflatingInputStream(InputStream in) {
+            super(in, new Inflater(true), BUFFER);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of deflated data");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // nowrap inflaters may require an extra dummy byte
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                super.close();
+                inf.end();
+            }
+        }
+    }
+}
@@ -21,16 +21,16 @@ package com.redhat.victims.fingerprint;
  * #L%
  */
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.HashSet;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
 
 import com.redhat.victims.VictimsConfig;
@@ -45,6 +45,9 @@ import com.redhat.victims.VictimsConfig;
 public class Processor {
     private static DefaultHashMap<String, Class<?>> TYPE_MAP = new DefaultHashMap<String, Class<?>>(
             File.class);
+    private static HashSet<Class<?>> BUFFERED_TYPES = new HashSet<Class<?>>();
+    private static HashSet<Class<?>> RANDOM_ACCESS_TYPES = new HashSet<Class<?>>();
+    private static final int BUFFER = 8192;
 
     // Keys used in records
     public static String CONTENT_KEY = "content";
@@ -58,6 +61,12 @@ public class Processor {
         // File Types
         TYPE_MAP.put(".class", ClassFile.class);
         TYPE_MAP.put(".jar", JarFile.class);
+
+        // Types that require the complete file in memory to be processed
+        BUFFERED_TYPES.add(ClassFile.class);
+
+        // Types that can process a file on disk via random access
+        RANDOM_ACCESS_TYPES.add(JarFile.class);
     }
 
     /**
@@ -82,21 +91,33 @@ public class Processor {
     }
 
     /**
-     * Process the given file (as bytes) and return the information record.
      * 
-     * @param bytes
-     *            The file to process as a byte array.
+     * @param fileType
+     *            The type of a file to check for. eg: ".class" ".jar"
+     * @return true if the processor for the given file type needs the entire
+     *         file as a byte array, false if it can consume it as a stream.
+     */
+    public static boolean requiresBytes(String fileType) {
+        return BUFFERED_TYPES.contains(getProcessor(fileType));
+    }
+
+    /**
+     * Helper method to instantiate the processor class for a given file name
+     * with the provided content. The content is either a byte array or an
+     * {@link InputStream}.
+     * 
+     * @param contentType
+     *            The class of the content argument.
+     * @param content
+     *            The content to process.
      * @param fileName
      *            The name of the file being processed.
      * @param knownTypesOnly
-     *            If set, file types known to the class are only processed. If
-     *            set to <code>false</code> and a class is not defined
-     *            explicitely for this type, {@link File} class will be used to
-     *            produce the {@link Artifact}.
+     *            If set, only types known to this class are processed.
      * @return Information record of type {@link Artifact}
      */
-    public static Artifact process(byte[] bytes, String fileName,
-            Boolean knownTypesOnly) {
+    private static Artifact process(Class<?> contentType, Object content,
+            String fileName, Boolean knownTypesOnly) {
         String fileType = Processor.getFileType(fileName);
         if (!knownTypesOnly
                 || (knownTypesOnly && Processor.isKnownType(fileType))) {
@@ -107,9 +128,10 @@ public class Processor {
                 try {
                     // TOOD: Maybe find a better way of doing this.
                     Constructor<?> ctor;
-                    ctor = cls.getConstructor(byte[].class, String.class);
+                    ctor = cls.getConstructor(contentType, String.class);
                     Object object;
-                    object = ctor.newInstance(new Object[] { bytes, fileName });
+                    object = ctor
+                            .newInstance(new Object[] { content, fileName });
                     return ((FingerprintInterface) object).getRecord();
                 } catch (NoSuchMethodException e) {
                 } catch (SecurityException e) {
@@ -125,6 +147,25 @@ public class Processor {
         return null;
     }
 
+    /**
+     * Process the given file (as bytes) and return the information record.
+     * 
+     * @param bytes
+     *            The file to process as a byte array.
+     * @param fileName
+     *            The name of the file being processed.
+     * @param knownTypesOnly
+     *            If set, file types known to the class are only processed. If
+     *            set to <code>false</code> and a class is not defined
+     *            explicitely for this type, {@link File} class will be used to
+     *            produce the {@link Artifact}.
+     * @return Information record of type {@link Artifact}
+     */
+    public static Artifact process(byte[] bytes, String fileName,
+            Boolean knownTypesOnly) {
+        return process(byte[].class, bytes, fileName, knownTypesOnly);
+    }
+
     /**
      * Process the given file (as bytes) and return the information record.
      * 
@@ -139,6 +180,27 @@ public class Processor {
         return process(bytes, fileName, false);
     }
 
+    /**
+     * Process the given file (as a stream) and return the information record.
+     * The stream is consumed as it is fingerprinted, the content is only
+     * buffered in memory if the processor for its type requires it.
+     * 
+     * @param is
+     *            The file as an input stream.
+     * @param fileName
+     *            The name of the file being processed.
+     * @param knownTypesOnly
+     *            If set, file types known to the class are only processed. If
+     *            set to <code>false</code> and a class is not defined
+     *            explicitely for this type, {@link File} class will be used to
+     *            produce the {@link Artifact}.
+     * @return Information record of type {@link Artifact}
+     */
+    public static Artifact process(InputStream is, String fileName,
+            Boolean knownTypesOnly) {
+        return process(InputStream.class, is, fileName, knownTypesOnly);
+    }
+
     /**
      * @param is
      *            The file as an input stream.
@@ -149,7 +211,7 @@ public class Processor {
      */
     public static Artifact process(InputStream is, String fileName)
             throws IOException {
-        return process(IOUtils.toByteArray(is), fileName);
+        return process(is, fileName, false);
     }
 
     /**
@@ -160,8 +222,17 @@ public class Processor {
      * @throws IOException
      */
     public static Artifact process(String fileName) throws IOException {
-        FileInputStream fis = new FileInputStream(fileName);
-        return process(fis, fileName);
+        if (RANDOM_ACCESS_TYPES.contains(getProcessor(getFileType(fileName)))) {
+            // processed via a (path, name) constructor
+            return process(String.class, fileName, fileName, false);
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(fileName),
+                BUFFER);
+        try {
+            return process(is, fileName);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
     }
 
     /**
@@ -190,18 +261,40 @@ public class Processor {
      * @return Hashmap of the form {algorithm:hash}
      */
     public static Fingerprint fingerprint(byte[] bytes) {
-        Fingerprint fingerprint = new Fingerprint();
-        for (Algorithms algorithm : VictimsConfig.algorithms()) {
-            try {
-                MessageDigest md = MessageDigest.getInstance(algorithm
-                        .toString().toUpperCase());
-                fingerprint.put(algorithm,
-                        new String(Hex.encodeHex(md.digest(bytes))));
-            } catch (NoSuchAlgorithmException e) {
-                // Do nothing just skip
-            }
-        }
-        return fingerprint;
+        Digester digester = Digester.acquire();
+        digester.write(bytes, 0, bytes.length);
+        return digester.fingerprint();
+    }
+
+    /**
+     * Generate a hashmap of fingerprints for the remaining content of a given
+     * buffer using all configured algorithms. The buffer's position is not
+     * changed.
+     * 
+     * @param buffer
+     *            A buffer whose content is to be fingerprinted.
+     * @return Hashmap of the form {algorithm:hash}
+     */
+    public static Fingerprint fingerprint(ByteBuffer buffer) {
+        Digester digester = Digester.acquire();
+        digester.write(buffer);
+        return digester.fingerprint();
+    }
+
+    /**
+     * Generate a hashmap of fingerprints for the content of a given stream
+     * using all configured algorithms. The stream is read till the end, but
+     * never held in memory.
+     * 
+     * @param is
+     *            The stream whose content is to be fingerprinted.
+     * @return Hashmap of the form {algorithm:hash}
+     * @throws IOException
+     */
+    public static Fingerprint fingerprint(InputStream is) throws IOException {
+        FingerprintInputStream fis = new FingerprintInputStream(is);
+        fis.drain();
+        return fis.getFingerprint();
     }
 
     /**
@@ -0,0 +1,234 @@
+package com.redhat.victims.fingerprint;
+
+
+/*
+ * #%L
+ * This file is part of victims-lib.
+ * %%
+ * Copyright (C) 2013 The Victims Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A sink for the canonical token stream produced when normalizing class
+ * files. Tokens are either appended as text, or encoded and written straight
+ * to an {@link OutputStream} (eg: a {@link Digester}) without building an
+ * intermediate String.
+ * 
+ * @author abn
+ * 
+ */
+abstract class TokenSink {
+
+    /**
+     * Append the decimal representation of the given value.
+     * 
+     * @param value
+     * @throws IOException
+     */
+    public abstract void append(int value) throws IOException;
+
+    /**
+     * Append the given string.
+     * 
+     * @param value
+     * @throws IOException
+     */
+    public abstract void append(String value) throws IOException;
+
+    /**
+     * Write out anything that has been buffered.
+     * 
+     * @throws IOException
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * Create a sink that encodes tokens using the given charset and writes
+     * them to the given stream. The bytes written are identical to encoding
+     * the concatenation of all tokens.
+     * 
+     * @param os
+     * @param charset
+     * @return
+     */
+    public static TokenSink encoding(OutputStream os, Charset charset) {
+        if (charset.name().equals("UTF-8")) {
+            return new Utf8Sink(os);
+        }
+        return new CharsetSink(os, charset);
+    }
+
+    /**
+     * A sink that appends all tokens to a {@link StringBuilder}.
+     */
+    static class StringSink extends TokenSink {
+        protected final StringBuilder buf;
+
+        public StringSink(StringBuilder buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public void append(int value) {
+            buf.append(value);
+        }
+
+        @Override
+        public void append(String value) {
+            buf.append(value);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // nothing to do
+        }
+    }
+
+    /**
+     * A sink that encodes tokens using an arbitrary charset. Tokens are
+     * collected and encoded in one go when flushed, as not all charsets can be
+     * encoded token by token.
+     */
+    static class CharsetSink extends StringSink {
+        private final OutputStream os;
+        private final Charset charset;
+
+        public CharsetSink(OutputStream os, Charset charset) {
+            super(new StringBuilder());
+            this.os = os;
+            this.charset = charset;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.write(buf.toString().getBytes(charset));
+            buf.setLength(0);
+        }
+    }
+
+    /**
+     * A sink that encodes tokens as UTF-8 into a reused buffer. Surrogate pairs
+     * split across tokens and unpaired surrogates are handled the same way as
+     * {@link String#getBytes(Charset)} does.
+     */
+    static class Utf8Sink extends TokenSink {
+        private static final int BUFFER = 512;
+        private static final byte REPLACEMENT = '?';
+
+        private final OutputStream os;
+        private final byte[] buffer = new byte[BUFFER];
+        private int count = 0;
+        private char high = 0;
+
+        public Utf8Sink(OutputStream os) {
+            this.os = os;
+        }
+
+        private void ensure(int length) throws IOException {
+            if (count + length > buffer.length) {
+                os.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        private void unpaired() throws IOException {
+            if (high != 0) {
+                ensure(1);
+                buffer[count++] = REPLACEMENT;
+                high = 0;
+            }
+        }
+
+        @Override
+        public void append(int value) throws IOException {
+            unpaired();
+            ensure(11);
+            if (value == Integer.MIN_VALUE) {
+                append(String.valueOf(value));
+                return;
+            }
+            if (value < 0) {
+                buffer[count++] = '-';
+                value = -value;
+            }
+            int start = count;
+            do {
+                buffer[count++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value > 0);
+            // digits were written least significant first
+            for (int i = start, j = count - 1; i < j; i++, j--) {
+                byte tmp = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = tmp;
+            }
+        }
+
+        @Override
+        public void append(String value) throws IOException {
+            if (value == null) {
+                // as appended by a StringBuilder
+                value = "null";
+            }
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                ensure(4);
+                if (high != 0) {
+                    if (Character.isLowSurrogate(c)) {
+                        int cp = Character.toCodePoint(high, c);
+                        buffer[count++] = (byte) (0xF0 | (cp >> 18));
+                        buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+                        high = 0;
+                        continue;
+                    }
+                    buffer[count++] = REPLACEMENT;
+                    high = 0;
+                }
+                if (c < 0x80) {
+                    buffer[count++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[count++] = (byte) (0xC0 | (c >> 6));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c)) {
+                    high = c;
+                } else if (Character.isLowSurrogate(c)) {
+                    buffer[count++] = REPLACEMENT;
+                } else {
+                    buffer[count++] = (byte) (0xE0 | (c >> 12));
+                    buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[count++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            unpaired();
+            if (count > 0) {
+                os.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -6,7 +6,8 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({ RecordStreamTest.class, VictimsScannerTest.class,
-        VictimsDatabaseTest.class })
+        VictimsDatabaseTest.class, ProcessorTest.class,
+        VictimsScanIndexTest.class })
 public class OfflineTests {
 
 }
@@ -0,0 +1,613 @@
+package com.redhat.victims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.util.ByteSequence;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.redhat.victims.fingerprint.Algorithms;
+import com.redhat.victims.fingerprint.Artifact;
+import com.redhat.victims.fingerprint.ClassFile;
+import com.redhat.victims.fingerprint.Digester;
+import com.redhat.victims.fingerprint.EntryFilter;
+import com.redhat.victims.fingerprint.Fingerprint;
+import com.redhat.victims.fingerprint.FingerprintMemo;
+import com.redhat.victims.fingerprint.FingerprintPool;
+import com.redhat.victims.fingerprint.FingerprintPool.TaskGroup;
+import com.redhat.victims.fingerprint.JarFile;
+import com.redhat.victims.fingerprint.Processor;
+
+public class ProcessorTest {
+
+    @Test
+    public void testStreamingFingerprint() throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(new File(
+                Resources.JAR_FILE));
+        InputStream is = new FileInputStream(Resources.JAR_FILE);
+        try {
+            assertEquals("Streamed fingerprint differs from buffered",
+                    Processor.fingerprint(bytes), Processor.fingerprint(is));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    @Test
+    public void testStreamingArchive() throws IOException {
+        byte[] bytes = FileUtils.readFileToByteArray(new File(
+                Resources.JAR_FILE));
+        int classes = 0;
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                if (entries.nextElement().getName().endsWith(".class")) {
+                    classes++;
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        Artifact streamed = Processor.process(Resources.JAR_FILE);
+        assertNotNull("Archive could not be processed", streamed);
+        assertEquals("Streamed archive fingerprint differs from buffered",
+                Processor.fingerprint(bytes), streamed.fingerprint());
+        assertEquals("Unexpected number of contents", classes, streamed
+                .contents().size());
+    }
+
+    private static HashSet<String> contentHashes(Artifact artifact) {
+        HashSet<String> hashes = new HashSet<String>();
+        for (Artifact content : artifact.contents()) {
+            hashes.add(content.fingerprint().get(Algorithms.SHA512));
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testMappedArchive() throws IOException {
+        Artifact mapped = Processor.process(Resources.JAR_FILE);
+        InputStream is = new FileInputStream(Resources.JAR_FILE);
+        Artifact streamed;
+        try {
+            streamed = Processor.process(is, Resources.JAR_FILE);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        assertEquals("Mapped archive fingerprint differs from streamed",
+                streamed.fingerprint(), mapped.fingerprint());
+        assertEquals("Mapped archive contents differ from streamed",
+                contentHashes(streamed), contentHashes(mapped));
+        assertEquals("Mapped archive metadata differs from streamed",
+                streamed.metadata(), mapped.metadata());
+    }
+
+    @Test
+    public void testNestedTaskGroups() throws InterruptedException {
+        // a single worker must not deadlock when tasks join nested groups
+        final FingerprintPool pool = new FingerprintPool(1);
+        final AtomicInteger count = new AtomicInteger();
+        TaskGroup outer = pool.group(2);
+        for (int i = 0; i < 4; i++) {
+            outer.fork(new Runnable() {
+                public void run() {
+                    TaskGroup inner = pool.group(2);
+                    try {
+                        for (int j = 0; j < 10; j++) {
+                            inner.fork(new Runnable() {
+                                public void run() {
+                                    count.incrementAndGet();
+                                }
+                            });
+                        }
+                        inner.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        outer.join();
+        pool.shutdown();
+        assertEquals("Not all forked tasks were run", 40, count.get());
+    }
+
+    @Test
+    public void testNormalizedFingerprint() throws IOException {
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                InputStream is = zip.getInputStream(entry);
+                byte[] bytes;
+                try {
+                    bytes = IOUtils.toByteArray(is);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+                Fingerprint expected = Processor.fingerprint(ClassFile
+                        .normalize(bytes, entry.getName()));
+                assertEquals("Normalized fingerprint differs for "
+                        + entry.getName(), expected,
+                        ClassFile.fingerprint(bytes, entry.getName()));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * The BCEL based normalization the class reader has to reproduce.
+     */
+    private static byte[] legacyNormalize(byte[] bytes, String fileName)
+            throws IOException {
+        JavaClass klass = new ClassParser(new ByteArrayInputStream(bytes),
+                fileName).parse();
+        ConstantPool cpool = klass.getConstantPool();
+        StringBuilder buf = new StringBuilder();
+        buf.append(klass.getSourceFileName());
+        buf.append(klass.getAccessFlags());
+        buf.append(ClassFile.constantValue(klass.getClassNameIndex(), cpool));
+        buf.append(ClassFile.constantValue(klass.getSuperclassNameIndex(),
+                cpool));
+        for (int index : klass.getInterfaceIndices()) {
+            buf.append(ClassFile.constantValue(index, cpool));
+        }
+        for (Field f : klass.getFields()) {
+            buf.append(f.getAccessFlags());
+            buf.append(ClassFile.constantValue(f.getNameIndex(), cpool));
+            buf.append(ClassFile.constantValue(f.getSignatureIndex(), cpool));
+            if (f.getConstantValue() != null) {
+                buf.append(ClassFile.constantValue(f.getConstantValue()
+                        .getConstantValueIndex(), cpool));
+            }
+        }
+        for (Method m : klass.getMethods()) {
+            buf.append(m.getAccessFlags());
+            buf.append(ClassFile.constantValue(m.getNameIndex(), cpool));
+            buf.append(ClassFile.constantValue(m.getSignatureIndex(), cpool));
+            Code code = m.getCode();
+            if (code != null) {
+                buf.append(ClassFile.formatBytecode(
+                        new ByteSequence(code.getCode()), cpool));
+            }
+        }
+        return buf.toString().getBytes(VictimsConfig.charset());
+    }
+
+    private static int compareNormalized(ZipFile zip, String prefix)
+            throws IOException {
+        int rejected = 0;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(".class")) {
+                continue;
+            }
+            InputStream is = zip.getInputStream(entry);
+            byte[] bytes;
+            try {
+                bytes = IOUtils.toByteArray(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            byte[] normalized = ClassFile.normalize(bytes, name);
+            byte[] expected;
+            try {
+                expected = legacyNormalize(bytes, name);
+            } catch (ClassFormatException e) {
+                // newer class file features unknown to BCEL
+                rejected++;
+                continue;
+            }
+            assertEquals("Normalized form differs for " + name, new String(
+                    expected, VictimsConfig.charset()), new String(normalized,
+                    VictimsConfig.charset()));
+        }
+        return rejected;
+    }
+
+    /**
+     * The SHA-512 fingerprints of the test jar's classes that are stored in
+     * its record, by class name.
+     */
+    private static HashMap<String, String> storedFingerprints()
+            throws IOException {
+        VictimsRecord vr = VictimsRecord.fromJSON(FileUtils.readFileToString(
+                new File(Resources.JAR_JSON)).trim());
+        HashMap<String, String> stored = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : vr.getHashes(Algorithms.SHA512)
+                .entrySet()) {
+            if (entry.getValue().endsWith(".class")) {
+                stored.put(entry.getValue(), entry.getKey());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Check the fingerprint of each normalized class against the stored
+     * record of the test jar.
+     * 
+     * @return The number of classes checked.
+     */
+    private static int compareStored(ZipFile zip) throws IOException {
+        HashMap<String, String> stored = storedFingerprints();
+        assertFalse("No stored class fingerprints", stored.isEmpty());
+        int checked = 0;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (!stored.containsKey(name)) {
+                continue;
+            }
+            InputStream is = zip.getInputStream(entry);
+            byte[] bytes;
+            try {
+                bytes = IOUtils.toByteArray(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            String fingerprint = DigestUtils.sha512Hex(ClassFile.normalize(
+                    bytes, name));
+            assertEquals("Fingerprint differs from the stored one for "
+                    + name, stored.get(name), fingerprint);
+            checked++;
+        }
+        return checked;
+    }
+
+    @Test
+    public void testClassReader() throws IOException {
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            assertEquals("BCEL rejected a test class", 0,
+                    compareNormalized(zip, ""));
+            assertEquals("Unexpected number of fingerprinted classes",
+                    storedFingerprints().size(), compareStored(zip));
+        } finally {
+            zip.close();
+        }
+
+        // the runtime classes give wider coverage, where available
+        File rt = FileUtils.getFile(System.getProperty("java.home"), "lib",
+                "rt.jar");
+        if (rt.isFile()) {
+            zip = new ZipFile(rt);
+            try {
+                for (String prefix : new String[] { "java/lang/",
+                        "java/util/", "java/io/", "java/math/" }) {
+                    compareNormalized(zip, prefix);
+                }
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * Write an archive embedding the test jar, once stored and once deflated.
+     */
+    private static File nestedArchive(byte[] jar) throws IOException {
+        File nested = File.createTempFile("victims", ".jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(nested));
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(jar);
+            ZipEntry stored = new ZipEntry("lib/stored.jar");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(jar.length);
+            stored.setCompressedSize(jar.length);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(jar);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("lib/deflated.jar"));
+            zos.write(jar);
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        return nested;
+    }
+
+    @Test
+    public void testEmbeddedArchives() throws IOException {
+        byte[] jar = FileUtils.readFileToByteArray(new File(Resources.JAR_FILE));
+        Fingerprint expected = Processor.fingerprint(jar);
+        int classes = Processor.process(Resources.JAR_FILE).contents().size();
+        File nested = nestedArchive(jar);
+        try {
+            byte[] bytes = FileUtils.readFileToByteArray(nested);
+            InputStream is = new FileInputStream(nested);
+            Artifact streamed;
+            try {
+                streamed = Processor.process(is, nested.getName());
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            for (Artifact artifact : new Artifact[] {
+                    Processor.process(nested.getPath()),
+                    Processor.process(bytes, nested.getName()), streamed }) {
+                assertEquals("Unexpected number of embedded archives", 2,
+                        artifact.embedded().size());
+                for (Artifact embedded : artifact.embedded()) {
+                    assertEquals("Embedded fingerprint differs", expected,
+                            embedded.fingerprint());
+                    assertEquals("Embedded contents differ", classes, embedded
+                            .contents().size());
+                }
+            }
+
+            // beyond the maximum depth archives are only fingerprinted
+            System.setProperty(VictimsConfig.Key.ARCHIVE_DEPTH, "0");
+            try {
+                Artifact artifact = Processor.process(nested.getPath());
+                assertEquals("Unexpected number of embedded archives", 2,
+                        artifact.embedded().size());
+                for (Artifact embedded : artifact.embedded()) {
+                    assertEquals("Embedded fingerprint differs", expected,
+                            embedded.fingerprint());
+                    assertNull("Embedded archive was processed",
+                            embedded.contents());
+                }
+            } finally {
+                System.clearProperty(VictimsConfig.Key.ARCHIVE_DEPTH);
+            }
+
+            // no content is processed beyond the budget, which is reported
+            final AtomicInteger warnings = new AtomicInteger();
+            Handler handler = new Handler() {
+                @Override
+                public void publish(LogRecord record) {
+                    if (record.getLevel() == Level.WARNING) {
+                        warnings.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            Logger log = Logger.getLogger(JarFile.class.getName());
+            log.addHandler(handler);
+            System.setProperty(VictimsConfig.Key.ARCHIVE_BUDGET,
+                    String.valueOf(jar.length));
+            try {
+                Artifact artifact = Processor.process(nested.getPath());
+                int processed = 0;
+                for (Artifact embedded : artifact.embedded()) {
+                    processed += embedded.contents().size();
+                }
+                assertTrue("Budget was not enforced", processed < classes * 2);
+                assertEquals("Exceeded budget was not reported once", 1,
+                        warnings.get());
+            } finally {
+                log.removeHandler(handler);
+                System.clearProperty(VictimsConfig.Key.ARCHIVE_BUDGET);
+            }
+
+            // streamed embedded archives are charged too
+            System.setProperty(VictimsConfig.Key.ARCHIVE_DEPTH, "0");
+            System.setProperty(VictimsConfig.Key.ARCHIVE_BUDGET,
+                    String.valueOf(jar.length / 2));
+            try {
+                is = new FileInputStream(nested);
+                try {
+                    streamed = Processor.process(is, nested.getName());
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+                for (Artifact artifact : new Artifact[] {
+                        Processor.process(nested.getPath()), streamed }) {
+                    assertEquals("Embedded archives exceeded the budget", 0,
+                            artifact.embedded().size());
+                }
+            } finally {
+                System.clearProperty(VictimsConfig.Key.ARCHIVE_DEPTH);
+                System.clearProperty(VictimsConfig.Key.ARCHIVE_BUDGET);
+            }
+        } finally {
+            FileUtils.deleteQuietly(nested);
+        }
+    }
+
+    public static class JunitOnlyFilter implements EntryFilter {
+        public boolean accept(String name) {
+            return name.startsWith("org/junit/") && name.endsWith(".class");
+        }
+    }
+
+    @Test
+    public void testEntryFilter() throws IOException {
+        int expected = 0;
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                if (new JunitOnlyFilter().accept(entries.nextElement()
+                        .getName())) {
+                    expected++;
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        System.setProperty(VictimsConfig.Key.ARCHIVE_FILTER,
+                JunitOnlyFilter.class.getName());
+        try {
+            InputStream is = new FileInputStream(Resources.JAR_FILE);
+            Artifact streamed;
+            try {
+                streamed = Processor.process(is, Resources.JAR_FILE);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+            for (Artifact artifact : new Artifact[] {
+                    Processor.process(Resources.JAR_FILE), streamed }) {
+                assertEquals("Filter was not applied", expected, artifact
+                        .contents().size());
+                for (Artifact content : artifact.contents()) {
+                    assertTrue("Filter was not applied", content.filename()
+                            .startsWith("org/junit/"));
+                }
+            }
+        } finally {
+            System.clearProperty(VictimsConfig.Key.ARCHIVE_FILTER);
+        }
+    }
+
+    @Test
+    public void testFingerprintMemo() throws IOException {
+        HashSet<String> distinct = new HashSet<String>();
+        java.util.ArrayList<byte[]> classes = new java.util.ArrayList<byte[]>();
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    InputStream is = zip.getInputStream(entry);
+                    try {
+                        byte[] bytes = IOUtils.toByteArray(is);
+                        classes.add(bytes);
+                        distinct.add(Hex.encodeHexString(bytes));
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        File journal = File.createTempFile("victims", ".memo");
+        try {
+            FingerprintMemo memo = new FingerprintMemo(classes.size(),
+                    journal);
+            for (int round = 0; round < 2; round++) {
+                for (byte[] bytes : classes) {
+                    assertEquals("Memoized fingerprint differs",
+                            Processor.fingerprint(ClassFile.normalize(bytes,
+                                    "memo")), memo.fingerprint(bytes, "memo"));
+                }
+            }
+            assertEquals("Unexpected number of misses", distinct.size(),
+                    memo.getMisses());
+            assertEquals("Unexpected number of hits", classes.size() * 2
+                    - distinct.size(), memo.getHits());
+            memo.close();
+
+            FingerprintMemo reloaded = new FingerprintMemo(classes.size(),
+                    journal);
+            assertEquals("Journal was not reloaded", distinct.size(),
+                    reloaded.size());
+            for (byte[] bytes : classes) {
+                reloaded.fingerprint(bytes, "memo");
+            }
+            assertEquals("Reloaded memo missed", 0, reloaded.getMisses());
+            reloaded.close();
+
+            // fingerprints of another normalizer are not used
+            java.util.List<String> lines = FileUtils.readLines(journal,
+                    "US-ASCII");
+            lines.set(0, lines.get(0).replaceFirst("^# v[0-9]+,", "# v0,"));
+            FileUtils.writeLines(journal, "US-ASCII", lines);
+            FingerprintMemo stale = new FingerprintMemo(classes.size(),
+                    journal);
+            assertEquals("Journal of another normalizer was loaded", 0,
+                    stale.size());
+            stale.close();
+
+            // the journal is rewritten instead of growing without bound
+            FingerprintMemo small = new FingerprintMemo(10, journal);
+            for (byte[] bytes : classes) {
+                small.fingerprint(bytes, "memo");
+            }
+            small.close();
+            assertTrue("Journal was not compacted", FileUtils.readLines(
+                    journal, "US-ASCII").size() <= 2 * 10 + 1);
+            small = new FingerprintMemo(10, journal);
+            assertEquals(10, small.size());
+            small.close();
+        } finally {
+            FileUtils.deleteQuietly(journal);
+        }
+    }
+
+    @Test
+    public void testDigester() throws Exception {
+        Digester first = Digester.acquire();
+        Digester second = Digester.acquire();
+        assertNotSame("Digester in use was handed out again", first, second);
+        first.release();
+        second.release();
+        Digester third = Digester.acquire();
+        third.release();
+        assertSame("Released digester was not reused", first, third);
+
+        // larger than a single sweep, mapped to a direct buffer
+        byte[] bytes = new byte[100000];
+        new Random(0).nextBytes(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        String expected = Hex.encodeHexString(MessageDigest.getInstance(
+                "SHA-512").digest(bytes));
+        assertEquals("Unexpected digest for byte array", expected, Processor
+                .fingerprint(bytes).get(Algorithms.SHA512));
+        assertEquals("Unexpected digest for direct buffer", expected,
+                Processor.fingerprint(direct).get(Algorithms.SHA512));
+    }
+}
@@ -1,8 +1,13 @@
 package com.redhat.victims;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -36,5 +41,54 @@ public class VictimsConfigTest {
         Algorithms expected = VictimsConfig.getDefaultAlgorithm();
         assertTrue("Unexpected algorithm(s) returned for invalid config.",
                 results.size() == 1 && results.contains(expected));
+
+        // parsed once per configured value
+        System.setProperty(VictimsConfig.Key.ALGORITHMS, "SHA1,SHA512");
+        List<Algorithms> current = VictimsConfig.currentAlgorithms();
+        assertSame(current, VictimsConfig.currentAlgorithms());
+        assertEquals(2, current.size());
+        System.setProperty(VictimsConfig.Key.ALGORITHMS, "SHA512");
+        assertNotSame(current, VictimsConfig.currentAlgorithms());
+        assertEquals(1, VictimsConfig.currentAlgorithms().size());
+        System.clearProperty(VictimsConfig.Key.ALGORITHMS);
+    }
+
+    @Test
+    public void testValues() {
+        try {
+            // invalid values fall back to the defaults
+            System.setProperty(VictimsConfig.Key.DB_POOL_SIZE, "0");
+            System.setProperty(VictimsConfig.Key.MATCH_BATCH, "many");
+            System.setProperty(VictimsConfig.Key.DB_FILTER_FPP, "1");
+            System.setProperty(VictimsConfig.Key.MEMO_SIZE, "4294967296");
+            assertEquals(VictimsConfig.DEFAULT_DB_POOL_SIZE,
+                    VictimsConfig.dbPoolSize());
+            assertEquals(VictimsConfig.DEFAULT_MATCH_BATCH,
+                    VictimsConfig.matchBatch());
+            assertEquals(VictimsConfig.DEFAULT_DB_FILTER_FPP,
+                    VictimsConfig.dbFilterFpp(), 0);
+            assertEquals(VictimsConfig.DEFAULT_MEMO_SIZE,
+                    VictimsConfig.memoSize());
+
+            // valid values are used
+            System.setProperty(VictimsConfig.Key.DB_POOL_SIZE, " 3 ");
+            System.setProperty(VictimsConfig.Key.DB_FILTER_FPP, "0.5");
+            System.setProperty(VictimsConfig.Key.DB_POOL_IDLE, "2");
+            assertEquals(3, VictimsConfig.dbPoolSize());
+            assertEquals(0.5, VictimsConfig.dbFilterFpp(), 0);
+            assertEquals(2000, VictimsConfig.dbPoolIdle());
+
+            // booleans come from defaults unless overridden
+            assertFalse(VictimsConfig.dbPostings());
+            System.setProperty(VictimsConfig.Key.DB_POSTINGS, "true");
+            assertTrue(VictimsConfig.dbPostings());
+        } finally {
+            System.clearProperty(VictimsConfig.Key.DB_POOL_SIZE);
+            System.clearProperty(VictimsConfig.Key.MATCH_BATCH);
+            System.clearProperty(VictimsConfig.Key.DB_FILTER_FPP);
+            System.clearProperty(VictimsConfig.Key.MEMO_SIZE);
+            System.clearProperty(VictimsConfig.Key.DB_POOL_IDLE);
+            System.clearProperty(VictimsConfig.Key.DB_POSTINGS);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package com.redhat.victims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.redhat.victims.VictimsService.RecordStream;
+import com.redhat.victims.database.VictimsSqlDB;
+import com.redhat.victims.mock.MockEnvironment;
+
+/**
+ * Timings of database lookups, run with <code>mvn test -Pbenchmark</code>.
+ * These are not part of the regular test suite.
+ */
+public class VictimsDatabaseBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 5;
+    private static final int LOOKUPS = 5000;
+
+    private static File root;
+    private static ArrayList<VictimsRecord> records;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        MockEnvironment.setUp(new File(Resources.TEST_RESPONSE), null);
+        root = File.createTempFile("victims", ".benchmark");
+        FileUtils.forceDelete(root);
+        records = new ArrayList<VictimsRecord>();
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                records.add(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        MockEnvironment.tearDown();
+        FileUtils.deleteQuietly(root);
+    }
+
+    /**
+     * Open a synchronized database of its own, configured with the given
+     * number of cached statements per connection and no filters, so that
+     * every lookup reaches the database.
+     */
+    private static VictimsSqlDB database(String name, int statements)
+            throws VictimsException {
+        String[][] props = new String[][] {
+                { VictimsConfig.Key.DB_URL,
+                        "jdbc:h2:" + new File(root, name).getAbsolutePath() },
+                { VictimsConfig.Key.DB_STATEMENTS, String.valueOf(statements) },
+                { VictimsConfig.Key.DB_FILTER_FPP, "0" } };
+        for (String[] prop : props) {
+            System.setProperty(prop[0], prop[1]);
+        }
+        try {
+            VictimsSqlDB db = new VictimsSqlDB();
+            db.synchronize();
+            return db;
+        } finally {
+            for (String[] prop : props) {
+                System.clearProperty(prop[0]);
+            }
+        }
+    }
+
+    /**
+     * A mix of the lookups made while scanning: by record hash, by metadata
+     * and batches of record hashes.
+     * 
+     * @return The number of CVEs found, to keep the work from being skipped.
+     */
+    private static int lookups(VictimsSqlDB db, int count)
+            throws VictimsException {
+        int cves = 0;
+        for (int i = 0; i < count; i++) {
+            VictimsRecord vr = records.get(i % records.size());
+            cves += db.getVulnerabilities(vr.hash).size();
+            cves += db.getVulnerabilities(vr.getFlattenedMetaData()).size();
+            HashSet<String> batch = new HashSet<String>();
+            for (int j = 0; j < 8; j++) {
+                batch.add(records.get((i + j) % records.size()).hash);
+            }
+            for (HashSet<String> found : db.getVulnerabilities(batch)
+                    .values()) {
+                cves += found.size();
+            }
+        }
+        return cves;
+    }
+
+    private static long time(VictimsSqlDB db) throws VictimsException {
+        long start = System.nanoTime();
+        lookups(db, LOOKUPS);
+        return (System.nanoTime() - start) / LOOKUPS;
+    }
+
+    @Test
+    public void benchmarkStatementCache() throws VictimsException {
+        VictimsSqlDB uncached = database("uncached", 0);
+        VictimsSqlDB cached = database("cached",
+                VictimsConfig.DEFAULT_DB_STATEMENTS);
+        int expected = lookups(uncached, WARMUP);
+        assertEquals(expected, lookups(cached, WARMUP));
+
+        // alternate, keeping the best round of each
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            before = Math.min(before, time(uncached));
+            after = Math.min(after, time(cached));
+        }
+        assertTrue(cached.getPool().getReused() > 0);
+        System.out.println(String.format(
+                "Lookup mix: %d ns uncached, %d ns cached (%.1fx)", before,
+                after, (double) before / after));
+    }
+}
@@ -1,21 +1,41 @@
 package com.redhat.victims;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.redhat.victims.VictimsService.RecordStream;
+import com.redhat.victims.database.HashFilter;
 import com.redhat.victims.database.VictimsDB;
+import com.redhat.victims.database.VictimsBatchDBInterface;
 import com.redhat.victims.database.VictimsDBInterface;
+import com.redhat.victims.database.VictimsIndexDB;
+import com.redhat.victims.database.VictimsSqlDB;
+import com.redhat.victims.database.VictimsSqlManager;
 import com.redhat.victims.fingerprint.Algorithms;
 import com.redhat.victims.mock.MockEnvironment;
 
@@ -106,6 +126,708 @@ public class VictimsDatabaseTest {
         testVulnerabilities(vdb, false, true);
     }
 
+    @Test
+    public void testVulnerabilityOutputStream() throws IOException,
+            VictimsException {
+        String sha512 = FileUtils.readFileToString(
+                new File(Resources.TEST_SHA512)).trim();
+        String cve = FileUtils.readFileToString(new File(Resources.TEST_CVE))
+                .trim();
+        final ArrayList<VictimsRecord> vulnerable = new ArrayList<VictimsRecord>();
+        final HashSet<String> found = new HashSet<String>();
+        VulnerabilityOutputStream vos = new VulnerabilityOutputStream(vdb,
+                new VulnerabilityOutputStream.Listener() {
+                    public void vulnerable(VictimsRecord record,
+                            HashSet<String> cves) {
+                        vulnerable.add(record);
+                        found.addAll(cves);
+                    }
+                });
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                vos.write(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+        vos.close();
+        boolean reported = false;
+        for (VictimsRecord record : vulnerable) {
+            reported |= record.hash.equals(sha512);
+        }
+        assertTrue("Vulnerable record was not reported.", reported);
+        assertTrue("Expected CVE was not reported.", found.contains(cve));
+    }
+
+    @Test
+    public void testBatchVulnerabilities() throws IOException,
+            VictimsException {
+        ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                records.add(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+
+        HashSet<String> hashes = new HashSet<String>();
+        for (VictimsRecord vr : records) {
+            hashes.add(vr.hash);
+        }
+        hashes.add("0");
+        VictimsBatchDBInterface batch = (VictimsBatchDBInterface) vdb;
+        HashMap<String, HashSet<String>> byHash = batch
+                .getVulnerabilities(hashes);
+        assertEquals("Unexpected number of results", hashes.size(),
+                byHash.size());
+        for (String hash : hashes) {
+            assertEquals("Unexpected CVEs for " + hash,
+                    vdb.getVulnerabilities(hash), byHash.get(hash));
+        }
+
+        // unseen hashes and a superset of file hashes, so that only embedded
+        // matches are found and nothing is cached
+        String run = String.valueOf(System.nanoTime());
+        for (int i = 0; i < records.size(); i++) {
+            VictimsRecord vr = records.get(i);
+            vr.hash = "batch-" + run + "-" + i;
+            vr.getHashes(Algorithms.SHA512).put("1", "1");
+        }
+        HashMap<String, HashSet<String>> byRecord = batch
+                .getVulnerabilities(records);
+        assertEquals("Unexpected number of results", records.size(),
+                byRecord.size());
+        boolean found = false;
+        for (int i = 0; i < records.size(); i++) {
+            VictimsRecord vr = records.get(i);
+            HashSet<String> cves = byRecord.get(vr.hash);
+            vr.hash = "single-" + run + "-" + i;
+            assertEquals("Unexpected CVEs for " + vr.hash,
+                    vdb.getVulnerabilities(vr), cves);
+            found |= !cves.isEmpty();
+        }
+        assertTrue("No embedded vulnerabilities found.", found);
+    }
+
+    @Test
+    public void testMatch() throws IOException, VictimsException {
+        String source = new File(Resources.JAR_FILE).getAbsolutePath();
+        ArrayList<VictimsRecord> records = VictimsScanner.getRecords(source);
+        ArrayList<HashSet<String>> expected = new ArrayList<HashSet<String>>();
+        for (VictimsRecord record : records) {
+            expected.add(vdb.getVulnerabilities(record));
+        }
+        Iterator<VictimsMatch> matches = VictimsScanner.match(source, vdb);
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue("Missing match.", matches.hasNext());
+            VictimsMatch match = matches.next();
+            assertEquals("Unexpected record.", records.get(i),
+                    match.getRecord());
+            assertEquals("Unexpected CVEs.", expected.get(i),
+                    match.getVulnerabilities());
+        }
+        assertTrue("Unexpected match.", !matches.hasNext());
+
+        // a database leaving out records without vulnerabilities
+        assertTrue(!new VictimsMatch(records.get(0), null).isVulnerable());
+
+        // a database without batch lookups is matched one record at a time
+        matches = VictimsScanner.match(source, new VictimsDBInterface() {
+            public Date lastUpdated() throws VictimsException {
+                return vdb.lastUpdated();
+            }
+
+            public void synchronize() throws VictimsException {
+                vdb.synchronize();
+            }
+
+            public HashSet<String> getVulnerabilities(VictimsRecord vr)
+                    throws VictimsException {
+                return vdb.getVulnerabilities(vr);
+            }
+
+            public HashSet<String> getVulnerabilities(String sha512)
+                    throws VictimsException {
+                return vdb.getVulnerabilities(sha512);
+            }
+
+            public HashSet<String> getVulnerabilities(
+                    HashMap<String, String> props) throws VictimsException {
+                return vdb.getVulnerabilities(props);
+            }
+
+            public int getRecordCount() throws VictimsException {
+                return vdb.getRecordCount();
+            }
+        });
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue("Missing match.", matches.hasNext());
+            assertEquals("Unexpected CVEs.", expected.get(i), matches.next()
+                    .getVulnerabilities());
+        }
+        assertTrue("Unexpected match.", !matches.hasNext());
+    }
+
+    @Test
+    public void testMatchClose() throws IOException, InterruptedException {
+        String source = new File(Resources.JAR_FILE).getAbsolutePath();
+        VictimsIterator<VictimsMatch> matches = VictimsScanner.match(source,
+                vdb, 1, true);
+        assertTrue("Missing match.", matches.hasNext());
+        matches.close();
+        assertTrue("Unexpected match.", !matches.hasNext());
+        assertTrue("Matching is still running",
+                VictimsScannerTest.finished("victims-match-"));
+        assertEquals("Connection was not returned.", 0,
+                ((VictimsSqlDB) vdb).getPool().getActive());
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        VictimsSqlManager pool = ((VictimsSqlDB) vdb).getPool();
+        final int count = vdb.getRecordCount();
+        long borrowed = pool.getBorrowed();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < pool.getSize() * 2; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            assertEquals(count, vdb.getRecordCount());
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Concurrent lookups failed: " + errors, errors.isEmpty());
+        assertEquals("Connections were not returned.", 0, pool.getActive());
+        assertTrue("Pool size was exceeded.",
+                pool.getIdle() <= pool.getSize());
+        assertTrue("Connections were not borrowed from the pool.",
+                pool.getBorrowed() - borrowed >= threads.size() * 20);
+    }
+
+    @Test
+    public void testConnectionPool() throws SQLException,
+            InterruptedException {
+        VictimsSqlManager pool = new VictimsSqlManager(
+                "jdbc:h2:mem:victims-pool-test", "victims", "victims", 2,
+                60000);
+        Connection connection = pool.getConnection();
+        assertEquals(1, pool.getActive());
+        connection.close();
+        assertTrue("Returned connection is still open.",
+                connection.isClosed());
+        try {
+            connection.createStatement();
+            assertTrue("Returned connection is usable.", false);
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(0, pool.getActive());
+        assertEquals(1, pool.getIdle());
+
+        // idle connections are reused, with open transactions rolled back
+        connection = pool.getConnection();
+        connection.setAutoCommit(false);
+        connection.createStatement();
+        connection.close();
+        connection = pool.getConnection();
+        assertTrue("Transaction was not reset.", connection.getAutoCommit());
+        connection.close();
+        assertEquals(1, pool.getCreated());
+        assertEquals(3, pool.getBorrowed());
+
+        pool.close();
+        assertEquals(0, pool.getIdle());
+
+        // connections idle too long are closed
+        pool = new VictimsSqlManager("jdbc:h2:mem:victims-pool-test",
+                "victims", "victims", 2, 0);
+        pool.getConnection().close();
+        Thread.sleep(5);
+        pool.getConnection().close();
+        assertEquals(1, pool.getEvicted());
+        assertEquals(2, pool.getCreated());
+        pool.close();
+    }
+
+    @Test
+    public void testStatementCache() throws SQLException {
+        VictimsSqlManager pool = new VictimsSqlManager(
+                "jdbc:h2:mem:victims-statement-test", "victims", "victims",
+                1, 60000, 4);
+        Connection keep = pool.getConnection();
+        keep.createStatement().execute(
+                "CREATE TABLE t (id INT, v VARCHAR(8))");
+        keep.createStatement().execute("INSERT INTO t VALUES (1, 'one')");
+        keep.close();
+
+        String query = "SELECT v FROM t WHERE id = ?";
+        for (int i = 0; i < 3; i++) {
+            Connection connection = pool.getConnection();
+            PreparedStatement ps = connection.prepareStatement(query);
+            ps.setInt(1, 1);
+            ResultSet rs = ps.executeQuery();
+            assertTrue(rs.next());
+            assertEquals("one", rs.getString(1));
+            ps.close();
+            assertTrue("Returned statement is still open.", ps.isClosed());
+            connection.close();
+        }
+        assertEquals("Statement was not reused.", 2, pool.getReused());
+        assertEquals("Statement was prepared again.", 1, pool.getPrepared());
+
+        // the same query nested while in use gets its own statement
+        Connection connection = pool.getConnection();
+        PreparedStatement outer = connection.prepareStatement(query);
+        PreparedStatement inner = connection.prepareStatement(query);
+        assertTrue("Statement in use was handed out.", outer != inner);
+        connection.close();
+        assertTrue("Statements were not closed with the connection.",
+                outer.isClosed() && inner.isClosed());
+        pool.close();
+
+        // without a cache, every statement is prepared
+        VictimsSqlManager uncached = new VictimsSqlManager(
+                "jdbc:h2:mem:victims-statement-test", "victims", "victims",
+                1, 60000, 0);
+        for (int i = 0; i < 3; i++) {
+            connection = uncached.getConnection();
+            connection.prepareStatement("SELECT 1").close();
+            connection.close();
+        }
+        assertEquals(0, uncached.getReused());
+        assertEquals(3, uncached.getPrepared());
+        uncached.close();
+    }
+
+    @Test
+    public void testSchemaMigration() throws IOException, SQLException,
+            VictimsException {
+        String sha512 = FileUtils.readFileToString(
+                new File(Resources.TEST_SHA512)).trim();
+        File dir = File.createTempFile("victims", ".db");
+        FileUtils.forceDelete(dir);
+        String url = "jdbc:h2:" + new File(dir, "victims").getAbsolutePath();
+
+        // a database as created before the schema was versioned
+        Connection connection = DriverManager.getConnection(url,
+                VictimsConfig.dbUser(), VictimsConfig.dbPass());
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute("CREATE TABLE records (id BIGINT PRIMARY KEY "
+                    + "AUTO_INCREMENT, hash VARCHAR(128))");
+            stmt.execute("CREATE TABLE filehashes (record BIGINT, "
+                    + "filehash VARCHAR(128), FOREIGN KEY(record) "
+                    + "REFERENCES records(id) ON DELETE CASCADE)");
+            stmt.execute("CREATE TABLE meta (record BIGINT, "
+                    + "prop VARCHAR(255), value VARCHAR(255), "
+                    + "FOREIGN KEY(record) REFERENCES records(id) "
+                    + "ON DELETE CASCADE)");
+            stmt.execute("CREATE TABLE cves (record BIGINT, "
+                    + "cve VARCHAR(32), FOREIGN KEY(record) "
+                    + "REFERENCES records(id) ON DELETE CASCADE)");
+            stmt.execute("INSERT INTO records (id, hash) VALUES (1, '"
+                    + sha512 + "'), (2, 'not a hash')");
+            stmt.execute("INSERT INTO filehashes VALUES (1, '"
+                    + sha512.toUpperCase() + "'), (2, '" + sha512 + "')");
+            stmt.execute("INSERT INTO cves VALUES (1, 'CVE-0000-0001'), "
+                    + "(2, 'CVE-0000-0002')");
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        String old = System.getProperty(VictimsConfig.Key.DB_URL);
+        System.setProperty(VictimsConfig.Key.DB_URL, url);
+        try {
+            VictimsSqlDB db = (VictimsSqlDB) VictimsDB.db();
+            assertEquals("Invalid record was kept.", 1, db.getRecordCount());
+            assertTrue("Migrated record was not found.", db
+                    .getVulnerabilities(sha512).contains("CVE-0000-0001"));
+            connection = db.getPool().getConnection();
+            try {
+                ResultSet rs = connection.getMetaData().getIndexInfo(null,
+                        null, "FILEHASHES", false, false);
+                HashSet<String> indexes = new HashSet<String>();
+                while (rs.next()) {
+                    indexes.add(rs.getString("INDEX_NAME"));
+                }
+                rs.close();
+                assertTrue("Index was not created.",
+                        indexes.contains("FILEHASHES_FILEHASH"));
+                rs = connection.createStatement().executeQuery(
+                        "SELECT MAX(version) FROM schema_version");
+                assertTrue(rs.next());
+                assertEquals(3, rs.getInt(1));
+                rs = connection.createStatement().executeQuery(
+                        "SELECT filecount FROM records WHERE id = 1");
+                assertTrue(rs.next());
+                assertEquals("File count was not backfilled.", 1,
+                        rs.getInt(1));
+            } finally {
+                connection.close();
+            }
+            // already migrated
+            assertEquals(1, VictimsDB.db().getRecordCount());
+            db.getPool().close();
+        } finally {
+            if (old != null) {
+                System.setProperty(VictimsConfig.Key.DB_URL, old);
+            } else {
+                System.clearProperty(VictimsConfig.Key.DB_URL);
+            }
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test
+    public void testHashFilter() {
+        Random random = new Random(42);
+        HashFilter filter = new HashFilter(10000, 0.01);
+        byte[][] added = new byte[10000][64];
+        for (byte[] hash : added) {
+            random.nextBytes(hash);
+            filter.add(hash);
+        }
+        for (byte[] hash : added) {
+            assertTrue("Added hash was not found.", filter.mightContain(hash));
+        }
+        int falsePositives = 0;
+        byte[] hash = new byte[64];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(hash);
+            if (filter.mightContain(hash)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives,
+                falsePositives < 200);
+        assertTrue("Unexpected false positive rate.",
+                Math.abs(filter.getFalsePositiveRate() - 0.01) < 0.005);
+        assertTrue("Unexpected memory footprint.",
+                filter.getMemory() < 10000 * 2);
+    }
+
+    @Test
+    public void testFilteredLookups() throws IOException, VictimsException {
+        VictimsSqlDB db = (VictimsSqlDB) vdb;
+        HashFilter filter = db.getRecordFilter();
+        assertEquals("Filter does not hold all records.",
+                vdb.getRecordCount(), filter.getEntries());
+        String sha512 = FileUtils.readFileToString(
+                new File(Resources.TEST_SHA512)).trim();
+        String missing = sha512.substring(0, 127)
+                + (sha512.endsWith("0") ? "1" : "0");
+        long positives = filter.getPositives();
+        long probes = filter.getProbes();
+        assertTrue(vdb.getVulnerabilities(missing).isEmpty());
+        assertTrue(vdb.getVulnerabilities(sha512).size() > 0);
+        assertEquals(probes + 2, filter.getProbes());
+        assertTrue(filter.getPositives() - positives >= 1);
+    }
+
+    private void execute(String sql, Object... objects) throws SQLException {
+        Connection connection = ((VictimsSqlDB) vdb).getPool()
+                .getConnection();
+        try {
+            PreparedStatement ps = connection.prepareStatement(sql);
+            for (int i = 0; i < objects.length; i++) {
+                ps.setObject(i + 1, objects[i]);
+            }
+            ps.execute();
+            ps.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testExternalUpdates() throws Exception {
+        // a record added by another process, behind the filters' back
+        String hash = DigestUtils.sha512Hex("external-" + System.nanoTime());
+        byte[] bytes = Hex.decodeHex(hash.toCharArray());
+        String cve = "CVE-0000-9999";
+        execute("INSERT INTO records (hash, filecount) VALUES (?, 0)", bytes);
+        try {
+            execute("INSERT INTO cves (record, cve) SELECT id, ? FROM "
+                    + "records WHERE hash = ?", cve, bytes);
+            Thread.sleep(1100);
+            assertTrue("Externally added record was filtered out.", vdb
+                    .getVulnerabilities(hash).contains(cve));
+        } finally {
+            execute("DELETE FROM cves WHERE cve = ?", cve);
+            execute("DELETE FROM records WHERE hash = ?", bytes);
+        }
+        // let the filters catch up with the removal
+        Thread.sleep(1100);
+        vdb.getVulnerabilities(hash);
+        assertEquals("Filter does not hold all records.",
+                vdb.getRecordCount(), ((VictimsSqlDB) vdb).getRecordFilter()
+                        .getEntries());
+    }
+
+    /**
+     * A database noting any connection borrowed while another is held, which
+     * waits forever on a pool of one.
+     */
+    private static class NestingSqlDB extends VictimsSqlDB {
+        static volatile boolean nested = false;
+
+        NestingSqlDB() throws VictimsException {
+            super();
+        }
+
+        @Override
+        protected Connection getConnection() throws SQLException {
+            if (getPool().getActive() > 0) {
+                nested = true;
+            }
+            return super.getConnection();
+        }
+    }
+
+    @Test
+    public void testNestedConnections() throws Exception {
+        ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                records.add(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+        String run = String.valueOf(System.nanoTime());
+        for (int i = 0; i < records.size(); i++) {
+            VictimsRecord vr = records.get(i);
+            vr.hash = "nested-" + run + "-" + i;
+            vr.getHashes(Algorithms.SHA512).put("1", "1");
+        }
+
+        NestingSqlDB db = new NestingSqlDB();
+        // the freshness checks are due during the lookup
+        Thread.sleep(1100);
+        NestingSqlDB.nested = false;
+        db.getVulnerabilities(records);
+        assertFalse("A connection was borrowed while holding one.",
+                NestingSqlDB.nested);
+
+        // an index of its own, so that other tests see the shared one unbuilt
+        System.setProperty(VictimsConfig.Key.DB_URL,
+                "jdbc:h2:mem:victims-nested-" + run + ";DB_CLOSE_DELAY=-1");
+        System.setProperty(VictimsConfig.Key.DB_FILTER_FPP, "0");
+        System.setProperty(VictimsConfig.Key.DB_POSTINGS, "true");
+        try {
+            db = new NestingSqlDB();
+        } finally {
+            System.clearProperty(VictimsConfig.Key.DB_URL);
+            System.clearProperty(VictimsConfig.Key.DB_FILTER_FPP);
+            System.clearProperty(VictimsConfig.Key.DB_POSTINGS);
+        }
+        // the index is built by the first lookup, and the freshness checks
+        // are due during the second
+        for (int round = 0; round < 2; round++) {
+            if (round > 0) {
+                Thread.sleep(1100);
+            }
+            for (VictimsRecord vr : records) {
+                // not cached yet
+                vr.hash = round + "-" + vr.hash;
+            }
+            NestingSqlDB.nested = false;
+            db.getVulnerabilities(records);
+            assertFalse("A connection was borrowed while holding one.",
+                    NestingSqlDB.nested);
+            assertTrue("File hashes were not indexed.",
+                    db.getEmbeddedIndex() != null);
+        }
+    }
+
+    @Test
+    public void testIndexDB() throws IOException, VictimsException {
+        VictimsIndexDB index = new VictimsIndexDB((VictimsSqlDB) vdb);
+        assertEquals(vdb.getRecordCount(), index.getRecordCount());
+        assertTrue("Index is empty.", index.getSize() > 0);
+
+        ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                records.add(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+        boolean embedded = false;
+        String run = String.valueOf(System.nanoTime());
+        for (int i = 0; i < records.size(); i++) {
+            VictimsRecord vr = records.get(i);
+            HashSet<String> cves = new HashSet<String>(vr.cves);
+            assertEquals("Unexpected CVEs for " + vr.hash, cves,
+                    index.getVulnerabilities(vr.hash));
+
+            // unseen hash and a superset of file hashes
+            vr.hash = "index-" + run + "-" + i;
+            vr.getHashes(Algorithms.SHA512).put("1", "1");
+            HashSet<String> expected = vdb.getVulnerabilities(vr);
+            assertEquals("Unexpected embedded CVEs.", expected,
+                    index.getVulnerabilities(vr));
+            embedded |= !expected.isEmpty();
+        }
+        assertTrue("No embedded vulnerabilities found.", embedded);
+        assertTrue(index.getVulnerabilities("0").isEmpty());
+    }
+
+    @Test
+    public void testTruncatedIndex() throws IOException, VictimsException {
+        VictimsIndexDB index = new VictimsIndexDB((VictimsSqlDB) vdb);
+        File directory = FileUtils.getFile(VictimsConfig.home(), "index");
+        File[] files = directory.listFiles();
+        assertEquals("Unexpected index files.", 1, files.length);
+
+        // replaced by a truncated copy, as after a crash
+        byte[] bytes = FileUtils.readFileToByteArray(files[0]);
+        File truncated = new File(directory, files[0].getName().replace(
+                ".idx", "-truncated.idx"));
+        FileUtils.writeByteArrayToFile(truncated,
+                Arrays.copyOf(bytes, bytes.length - 8));
+        FileUtils.forceDelete(files[0]);
+
+        index = new VictimsIndexDB((VictimsSqlDB) vdb);
+        assertEquals("Truncated index was used.", bytes.length,
+                index.getSize());
+        files = directory.listFiles();
+        assertEquals("Unexpected index files.", 1, files.length);
+        assertFalse("Truncated index was kept.", files[0].equals(truncated));
+    }
+
+    @Test
+    public void testIndexExternalUpdates() throws Exception {
+        VictimsIndexDB index = new VictimsIndexDB((VictimsSqlDB) vdb);
+        // a record added by another instance, behind the index's back
+        String hash = DigestUtils.sha512Hex("indexed-" + System.nanoTime());
+        byte[] bytes = Hex.decodeHex(hash.toCharArray());
+        String cve = "CVE-0000-9998";
+        assertTrue(index.getVulnerabilities(hash).isEmpty());
+        execute("INSERT INTO records (hash, filecount) VALUES (?, 0)", bytes);
+        try {
+            execute("INSERT INTO cves (record, cve) SELECT id, ? FROM "
+                    + "records WHERE hash = ?", cve, bytes);
+            Thread.sleep(1100);
+            assertTrue("Index was not rebuilt.", index
+                    .getVulnerabilities(hash).contains(cve));
+        } finally {
+            execute("DELETE FROM cves WHERE cve = ?", cve);
+            execute("DELETE FROM records WHERE hash = ?", bytes);
+        }
+    }
+
+    @Test
+    public void testEmbeddedIndex() throws IOException, VictimsException {
+        VictimsSqlDB queried = (VictimsSqlDB) vdb;
+        assertTrue("Index is not disabled by default.",
+                queried.getEmbeddedIndex() == null);
+        VictimsSqlDB indexed;
+        System.setProperty(VictimsConfig.Key.DB_POSTINGS, "true");
+        try {
+            indexed = new VictimsSqlDB();
+        } finally {
+            System.clearProperty(VictimsConfig.Key.DB_POSTINGS);
+        }
+        assertTrue("Index was built before it was needed.",
+                indexed.getEmbeddedIndex() == null);
+
+        ArrayList<VictimsRecord> records = new ArrayList<VictimsRecord>();
+        FileInputStream fin = new FileInputStream(Resources.TEST_RESPONSE);
+        try {
+            RecordStream rs = new RecordStream(fin);
+            while (rs.hasNext()) {
+                records.add(rs.getNext());
+            }
+        } finally {
+            fin.close();
+        }
+        String run = String.valueOf(System.nanoTime());
+        boolean found = false;
+        for (int i = 0; i < records.size(); i++) {
+            VictimsRecord vr = records.get(i);
+            vr.getHashes(Algorithms.SHA512).put("1", "1");
+            vr.hash = "queried-" + run + "-" + i;
+            HashSet<String> expected = queried.getVulnerabilities(vr);
+            vr.hash = "indexed-" + run + "-" + i;
+            assertEquals("Unexpected embedded CVEs.", expected,
+                    indexed.getVulnerabilities(vr));
+            found |= !expected.isEmpty();
+        }
+        assertTrue("No embedded vulnerabilities found.", found);
+        assertTrue("File hashes were not indexed.", indexed
+                .getEmbeddedIndex().getSize() > 0);
+
+        for (VictimsRecord vr : records) {
+            vr.hash = "batch-" + vr.hash;
+        }
+        HashMap<String, HashSet<String>> expected = queried
+                .getVulnerabilities(records);
+        for (VictimsRecord vr : records) {
+            vr.hash = "batch-" + vr.hash;
+        }
+        HashMap<String, HashSet<String>> actual = indexed
+                .getVulnerabilities(records);
+        for (VictimsRecord vr : records) {
+            assertEquals("Unexpected batched embedded CVEs.",
+                    expected.get(vr.hash.substring(6)), actual.get(vr.hash));
+        }
+    }
+
+    @Test
+    public void testBatchedSynchronize() throws IOException, SQLException,
+            VictimsException {
+        int records = vdb.getRecordCount();
+        System.setProperty(VictimsConfig.Key.DB_SYNC_BATCH, "2");
+        try {
+            VictimsDB.db().synchronize();
+        } finally {
+            System.clearProperty(VictimsConfig.Key.DB_SYNC_BATCH);
+        }
+        assertEquals("Updated records were duplicated.", records,
+                vdb.getRecordCount());
+        testSynchronize();
+        testVulnerabilities(vdb, true, false);
+
+        Connection connection = ((VictimsSqlDB) vdb).getPool().getConnection();
+        try {
+            ResultSet rs = connection.createStatement().executeQuery(
+                    "SELECT COUNT(*) FROM records WHERE filecount <> "
+                            + "(SELECT COUNT(*) FROM filehashes "
+                            + "WHERE filehashes.record = records.id)");
+            assertTrue(rs.next());
+            assertEquals("File counts are out of date.", 0, rs.getInt(1));
+            rs.close();
+        } finally {
+            connection.close();
+        }
+    }
+
     @Test
     public void testResync() throws VictimsException {
         VictimsDBInterface vdb = VictimsDB.db();
@@ -0,0 +1,152 @@
+package com.redhat.victims;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.victims.fingerprint.EntryFilter;
+
+public class VictimsScanIndexTest {
+    private File temp;
+    private File jar;
+
+    @Before
+    public void setUp() throws IOException {
+        temp = File.createTempFile("victims", ".index");
+        FileUtils.forceDelete(temp);
+        FileUtils.forceMkdir(temp);
+        jar = new File(temp, "junit.jar");
+        FileUtils.copyFile(new File(Resources.JAR_FILE), jar);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(temp);
+    }
+
+    private VictimsScanIndex index(double verify) throws VictimsException {
+        return new VictimsScanIndex(new File(temp, "index").getPath(), verify);
+    }
+
+    @Test
+    public void testUnchanged() throws IOException, VictimsException {
+        ArrayList<VictimsRecord> records = VictimsScanner.getRecords(jar
+                .getPath());
+        VictimsScanIndex index = index(1);
+        assertNull("File was not indexed yet", index.get(jar));
+        index.put(jar, records);
+        assertEquals("Indexed records differ", records, index.get(jar));
+        assertEquals("Indexed records differ", records, index(0).get(jar));
+    }
+
+    @Test
+    public void testConfigChanged() throws IOException, VictimsException {
+        ArrayList<VictimsRecord> records = VictimsScanner.getRecords(jar
+                .getPath());
+        VictimsScanIndex index = index(0);
+        index.put(jar, records);
+
+        // settings changing the records invalidate the entry
+        String[][] settings = {
+                { VictimsConfig.Key.ALGORITHMS, "SHA1,SHA512" },
+                { VictimsConfig.Key.ENCODING, "UTF-16" },
+                { VictimsConfig.Key.ARCHIVE_DEPTH, "0" },
+                { VictimsConfig.Key.ARCHIVE_BUDGET, "1024" },
+                { VictimsConfig.Key.ARCHIVE_FILTER,
+                        AllEntriesFilter.class.getName() } };
+        for (String[] setting : settings) {
+            System.setProperty(setting[0], setting[1]);
+            try {
+                assertNull("Entry was used after changing " + setting[0],
+                        index.get(jar));
+            } finally {
+                System.clearProperty(setting[0]);
+            }
+        }
+        assertNotNull("Entry was not used", index.get(jar));
+    }
+
+    public static class AllEntriesFilter implements EntryFilter {
+        public boolean accept(String name) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testChanged() throws IOException, VictimsException {
+        ArrayList<VictimsRecord> records = VictimsScanner.getRecords(jar
+                .getPath());
+        VictimsScanIndex index = index(0);
+        index.put(jar, records);
+
+        // a change of modification time invalidates the entry
+        long modified = jar.lastModified();
+        jar.setLastModified(modified - 10000);
+        assertNull("Changed file was taken from index", index.get(jar));
+        index.put(jar, records);
+        assertNotNull("File was not indexed", index.get(jar));
+
+        // content changes that keep size and time are caught by verification
+        modified = jar.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(jar, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        jar.setLastModified(modified);
+        assertNotNull("Unverified entry was not used", index.get(jar));
+        assertNull("Verified entry was used", index(1).get(jar));
+    }
+
+    @Test
+    public void testChangedWhileScanning() throws IOException,
+            VictimsException {
+        long size = jar.length();
+        long modified = jar.lastModified();
+        ArrayList<VictimsRecord> records = VictimsScanner.getRecords(jar
+                .getPath());
+
+        // the file changes after it was stat'ed, before it is indexed
+        jar.setLastModified(modified - 10000);
+        VictimsScanIndex index = index(0);
+        index.put(jar, size, modified, records);
+        assertNull("Records of old content were taken from index",
+                index.get(jar));
+    }
+
+    @Test
+    public void testIncrementalScan() throws IOException {
+        String home = System.getProperty(VictimsConfig.Key.HOME);
+        System.setProperty(VictimsConfig.Key.HOME, temp.getPath());
+        System.setProperty(VictimsConfig.Key.SCAN_INCREMENTAL, "true");
+        try {
+            ArrayList<VictimsRecord> first = VictimsScanner.getRecords(temp
+                    .getPath());
+            ArrayList<VictimsRecord> second = VictimsScanner.getRecords(temp
+                    .getPath());
+            assertEquals("Unexpected number of records", 1, first.size());
+            assertEquals("Incremental scan differs", first, second);
+        } finally {
+            System.clearProperty(VictimsConfig.Key.SCAN_INCREMENTAL);
+            if (home == null) {
+                System.clearProperty(VictimsConfig.Key.HOME);
+            } else {
+                System.setProperty(VictimsConfig.Key.HOME, home);
+            }
+        }
+    }
+}
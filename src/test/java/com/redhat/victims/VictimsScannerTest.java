@@ -1,19 +1,30 @@
 package com.redhat.victims;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 import com.redhat.victims.fingerprint.Algorithms;
@@ -116,4 +127,261 @@ public class VictimsScannerTest {
         valueTest(Resources.POM_FILE, Resources.POM_SHA1, true);
     }
 
+    /**
+     * Create a directory tree of small jars, each holding a different class
+     * from the test jar.
+     */
+    private static File jarTree(int count) throws IOException {
+        File root = File.createTempFile("victims", ".scan");
+        FileUtils.forceDelete(root);
+        FileUtils.forceMkdir(root);
+        ZipFile zip = new ZipFile(Resources.JAR_FILE);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            int created = 0;
+            while (entries.hasMoreElements() && created < count) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                File dir = FileUtils.getFile(root, "d" + (created % 3), "e"
+                        + (created % 2));
+                FileUtils.forceMkdir(dir);
+                ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(
+                        new File(dir, "test" + created + ".jar")));
+                InputStream is = zip.getInputStream(entry);
+                try {
+                    zos.putNextEntry(new ZipEntry(entry.getName()));
+                    IOUtils.copy(is, zos);
+                    zos.closeEntry();
+                } finally {
+                    IOUtils.closeQuietly(is);
+                    zos.close();
+                }
+                created++;
+            }
+        } finally {
+            zip.close();
+        }
+        FileUtils.writeStringToFile(new File(root, "ignored.txt"), "ignored");
+        return root;
+    }
+
+    @Test
+    public void testParallelScan() throws IOException {
+        File root = jarTree(24);
+        try {
+            ArrayList<VictimsRecord> sequential = new ArrayList<VictimsRecord>();
+            VictimsScanner.scan(root.getAbsolutePath(), sequential, 1, true);
+            assertEquals("Unexpected number of records", 24, sequential.size());
+
+            ArrayList<VictimsRecord> ordered = new ArrayList<VictimsRecord>();
+            VictimsScanner.scan(root.getAbsolutePath(), ordered, 4, true);
+            assertEquals("Ordered parallel scan differs", sequential, ordered);
+
+            ArrayList<VictimsRecord> unordered = new ArrayList<VictimsRecord>();
+            VictimsScanner.scan(root.getAbsolutePath(), unordered, 4, false);
+            assertEquals("Unordered parallel scan differs", sequential.size(),
+                    unordered.size());
+            for (VictimsRecord record : unordered) {
+                assertTrue("Unordered parallel scan differs",
+                        sequential.contains(record));
+            }
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    @Test
+    public void testJsonLines() throws IOException {
+        File root = jarTree(8);
+        try {
+            ArrayList<VictimsRecord> records = VictimsScanner.getRecords(root
+                    .getAbsolutePath());
+            StringBuilder expected = new StringBuilder();
+            for (VictimsRecord record : records) {
+                expected.append(record.toString()).append('\n');
+            }
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            VictimsScanner.scan(root.getAbsolutePath(), os);
+            assertEquals("Unexpected JSON lines", expected.toString(),
+                    os.toString(VictimsConfig.charset().name()));
+
+            System.setProperty(VictimsConfig.Key.OUTPUT_GZIP, "true");
+            try {
+                os = new ByteArrayOutputStream();
+                VictimsScanner.scan(root.getAbsolutePath(), os);
+            } finally {
+                System.clearProperty(VictimsConfig.Key.OUTPUT_GZIP);
+            }
+            InputStream is = new GZIPInputStream(new ByteArrayInputStream(
+                    os.toByteArray()));
+            try {
+                assertEquals("Unexpected compressed JSON lines",
+                        expected.toString(),
+                        IOUtils.toString(is, VictimsConfig.charset().name()));
+            } finally {
+                is.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    @Test
+    public void testOutputStreams() throws IOException {
+        File root = jarTree(12);
+        try {
+            String source = root.getAbsolutePath();
+            ArrayList<VictimsRecord> expected = VictimsScanner
+                    .getRecords(source);
+
+            final ArrayList<VictimsRecord> handled = new ArrayList<VictimsRecord>();
+            CallbackOutputStream.Callback callback = new CallbackOutputStream.Callback() {
+                public void handle(VictimsRecord record) {
+                    handled.add(record);
+                }
+            };
+            VictimsScanner.scan(source, new CallbackOutputStream(callback));
+            assertEquals("Unexpected callback records", expected, handled);
+
+            // a single slot forces writers to wait on the consumer
+            handled.clear();
+            AsyncOutputStream async = new AsyncOutputStream(
+                    new CallbackOutputStream(callback), 1);
+            VictimsScanner.scan(source, async, 4, true);
+            assertEquals("Unexpected asynchronous records", expected, handled);
+            async.close();
+
+            ArrayList<VictimsRecord> iterated = new ArrayList<VictimsRecord>();
+            Iterator<VictimsRecord> records = VictimsScanner.iterate(source);
+            while (records.hasNext()) {
+                iterated.add(records.next());
+            }
+            assertEquals("Unexpected iterated records", expected, iterated);
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    @Test
+    public void testOutputStreamErrors() throws IOException {
+        File root = jarTree(4);
+        try {
+            AsyncOutputStream async = new AsyncOutputStream(
+                    new CallbackOutputStream(
+                            new CallbackOutputStream.Callback() {
+                                public void handle(VictimsRecord record)
+                                        throws IOException {
+                                    throw new IOException("rejected");
+                                }
+                            }), 2);
+            try {
+                VictimsScanner.scan(root.getAbsolutePath(), async);
+                fail("Delegate error was not reported");
+            } catch (IOException e) {
+                assertEquals("rejected", e.getMessage());
+            }
+
+            // a broken sink does not hide the error of the scan
+            OutputStream broken = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("broken");
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    throw new IOException("broken");
+                }
+            };
+            try {
+                VictimsScanner.scan(new File(root, "missing.jar")
+                        .getAbsolutePath(), broken);
+                fail("Scan error was not reported");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("Invalid source file"));
+            }
+
+            Iterator<VictimsRecord> records = VictimsScanner.iterate(new File(
+                    root, "missing.jar").getAbsolutePath());
+            try {
+                records.hasNext();
+                fail("Scan error was not reported");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+
+    /**
+     * Wait for all threads with the given name prefix to finish.
+     */
+    static boolean finished(String prefix) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean alive = false;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                alive |= thread.getName().startsWith(prefix);
+            }
+            if (!alive) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    @Test
+    public void testIteratorClose() throws IOException, InterruptedException {
+        final VictimsRecord record = VictimsScanner.getRecords(
+                Resources.JAR_FILE).get(0);
+
+        // closing a full stream does not wait for the consumer
+        IteratorOutputStream ios = new IteratorOutputStream(1);
+        ios.write(record);
+        ios.close();
+        VictimsIterator<VictimsRecord> records = ios.iterator();
+        assertEquals(record, records.next());
+        assertFalse(records.hasNext());
+
+        // a producer waiting for room is released when the consumer stops
+        final IteratorOutputStream blocked = new IteratorOutputStream(1);
+        final IOException[] error = new IOException[1];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        blocked.write(record);
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        producer.start();
+        records = blocked.iterator();
+        assertTrue(records.hasNext());
+        records.next();
+        records.close();
+        producer.join(10000);
+        assertFalse("Producer is still waiting", producer.isAlive());
+        assertNotNull("Producer was not told to stop", error[0]);
+        assertFalse(records.hasNext());
+
+        // closing an abandoned iteration stops the background scan
+        File root = jarTree(12);
+        try {
+            records = VictimsScanner.iterate(root.getAbsolutePath());
+            assertTrue(records.hasNext());
+            records.close();
+            assertTrue("Scan is still running", finished("victims-iterate-"));
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
 }